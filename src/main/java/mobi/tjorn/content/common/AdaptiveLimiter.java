@@ -0,0 +1,338 @@
+/*
+ * Copyright 2016 TJORN LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobi.tjorn.content.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * <p>
+ * Limits the number of loads that run at the same time.  The limit adapts to observed
+ * load latency with AIMD (additive increase, multiplicative decrease): while loads complete
+ * close to the lowest latency seen recently, the limit grows by about one per round of loads;
+ * when latency rises well above it, the backend is assumed to be saturated and the limit
+ * shrinks, at most once per round: only a slow load that started after the previous decrease
+ * shrinks it again.
+ * </p>
+ * <p>
+ * Loads over the limit wait in a queue ordered by priority (higher first), then by arrival.
+ * Share one {@link AdaptiveLimiter} between all loaders that hit the same backend.
+ * The class is thread safe.
+ * </p>
+ */
+public class AdaptiveLimiter {
+    private static final double BACKOFF = 0.9;
+    private static final int BASELINE_WINDOW = 200;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final PriorityQueue<Ticket> queue = new PriorityQueue<Ticket>();
+    private final List<Ticket> running = new ArrayList<Ticket>();
+    private double limit;
+    private int inFlight;
+    private long sequence;
+    private long baselineNanos = Long.MAX_VALUE;
+    private int baselineSamples;
+    private long lastBackoffNanos;
+    private boolean backedOff;
+
+    /**
+     * Initializes new limiter.
+     *
+     * @param initialLimit Initial number of concurrent loads.
+     * @param minLimit     The limit never drops below this value.
+     * @param maxLimit     The limit never grows above this value.
+     * @param tolerance    Latency, as a multiple of the lowest recent latency, above which
+     *                     the limit is decreased.  For example, {@code 2.0}.
+     */
+    public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, double tolerance) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Expected 1 <= minLimit <= initialLimit <= maxLimit");
+        }
+        if (tolerance <= 1) {
+            throw new IllegalArgumentException("tolerance must be greater than 1: " + tolerance);
+        }
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Returns the current concurrency limit.
+     *
+     * @return Current limit.
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Returns the number of loads currently holding a slot.
+     *
+     * @return Number of running loads.
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Returns the number of loads waiting for a slot.
+     *
+     * @return Queue depth.
+     */
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Requests a slot.  {@code onGranted} is called once the slot is granted: right away
+     * on the calling thread if a slot is free, otherwise later on the thread that frees a slot.
+     *
+     * @param priority  Load priority; higher priorities are granted first.
+     * @param onGranted Called when the slot is granted.  Should return quickly.
+     * @return A ticket to pass to {@link #release(Ticket)} or {@link #cancel(Ticket)}.
+     */
+    public Ticket enqueue(int priority, Runnable onGranted) {
+        return enqueue(priority, onGranted, null);
+    }
+
+    Ticket enqueue(int priority, Runnable onGranted, Runnable onPreempted) {
+        final Ticket ticket;
+        final Ticket victim;
+        synchronized (this) {
+            ticket = new Ticket(priority, sequence++, onGranted, onPreempted);
+            ticket.queuedNanos = System.nanoTime();
+            queue.add(ticket);
+            victim = preemptFor(ticket);
+        }
+        grant();
+        if (victim != null) {
+            victim.onPreempted.run();
+        }
+        return ticket;
+    }
+
+    /**
+     * Requests a slot and blocks until it is granted.  Must not be called on the main thread.
+     *
+     * @param priority Load priority; higher priorities are granted first.
+     * @return A ticket to pass to {@link #release(Ticket)}.
+     * @throws InterruptedException If the waiting thread is interrupted.  The request is canceled.
+     */
+    public Ticket acquire(int priority) throws InterruptedException {
+        return awaitGrant(enqueue(priority, null, null));
+    }
+
+    /**
+     * Changes the priority of a request.  A queued request moves in the queue; a granted
+     * request keeps its slot and only the priority seen by later scheduling decisions changes.
+     *
+     * @param ticket   Ticket of the request.
+     * @param priority New priority.
+     */
+    public void setPriority(Ticket ticket, int priority) {
+        final Ticket victim;
+        synchronized (this) {
+            if (ticket.priority == priority) {
+                return;
+            }
+            if (ticket.state == Ticket.QUEUED) {
+                queue.remove(ticket);
+                ticket.priority = priority;
+                queue.add(ticket);
+                victim = preemptFor(ticket);
+            } else {
+                ticket.priority = priority;
+                victim = null;
+            }
+        }
+        grant();
+        if (victim != null) {
+            victim.onPreempted.run();
+        }
+    }
+
+    Ticket awaitGrant(Ticket ticket) throws InterruptedException {
+        try {
+            ticket.granted.await();
+        } catch (InterruptedException e) {
+            cancel(ticket);
+            throw e;
+        }
+        return ticket;
+    }
+
+    /**
+     * Frees the slot held by a completed load and adjusts the limit based on the load latency.
+     *
+     * @param ticket Ticket of the completed load.
+     */
+    public void release(Ticket ticket) {
+        synchronized (this) {
+            if (ticket.state != Ticket.GRANTED) {
+                return;
+            }
+            ticket.state = Ticket.DONE;
+            running.remove(ticket);
+            inFlight--;
+            onSample(ticket.grantNanos, System.nanoTime());
+        }
+        grant();
+    }
+
+    /**
+     * Withdraws a queued request, or frees the slot of a load that was canceled.
+     * Canceled loads do not affect the limit.
+     *
+     * @param ticket Ticket of the canceled load.
+     */
+    public void cancel(Ticket ticket) {
+        synchronized (this) {
+            if (ticket.state == Ticket.QUEUED) {
+                queue.remove(ticket);
+            } else if (ticket.state == Ticket.GRANTED) {
+                running.remove(ticket);
+                inFlight--;
+            }
+            ticket.state = Ticket.DONE;
+        }
+        grant();
+    }
+
+    // Called with lock held
+    private void onSample(long grantNanos, long nowNanos) {
+        final long latencyNanos = nowNanos - grantNanos;
+        if (++baselineSamples > BASELINE_WINDOW) {
+            baselineSamples = 0;
+            baselineNanos = latencyNanos;
+        } else if (latencyNanos < baselineNanos) {
+            baselineNanos = latencyNanos;
+        }
+        if (latencyNanos > baselineNanos * tolerance) {
+            // Loads that started before the previous decrease report the same congestion
+            if (!backedOff || grantNanos - lastBackoffNanos > 0) {
+                limit = Math.max(minLimit, limit * BACKOFF);
+                lastBackoffNanos = nowNanos;
+                backedOff = true;
+            }
+        } else if (inFlight + 1 >= (int) limit) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    // Called with lock held
+    private Ticket preemptFor(Ticket waiting) {
+        if (inFlight < (int) limit) {
+            return null;
+        }
+        final Ticket victim = selectVictim(waiting, running);
+        if (victim != null) {
+            victim.state = Ticket.DONE;
+            running.remove(victim);
+            inFlight--;
+        }
+        return victim;
+    }
+
+    /**
+     * Picks a running load to preempt in favor of a waiting request when no slot is free.
+     * Called with the limiter lock held.  Never preempts by default.
+     *
+     * @param waiting The waiting request.
+     * @param running Granted requests.
+     * @return A granted request that was submitted with a preemption callback, or {@code null}.
+     */
+    Ticket selectVictim(Ticket waiting, List<Ticket> running) {
+        return null;
+    }
+
+    /**
+     * Called with the limiter lock held when a request is granted.
+     *
+     * @param ticket      The granted request.
+     * @param queuedNanos Time the request waited in the queue.
+     */
+    void onGranted(Ticket ticket, long queuedNanos) {
+    }
+
+    private void grant() {
+        final List<Ticket> granted = new ArrayList<Ticket>();
+        synchronized (this) {
+            while (inFlight < (int) limit && !queue.isEmpty()) {
+                final Ticket ticket = queue.poll();
+                ticket.state = Ticket.GRANTED;
+                ticket.grantNanos = System.nanoTime();
+                inFlight++;
+                running.add(ticket);
+                granted.add(ticket);
+                onGranted(ticket, ticket.grantNanos - ticket.queuedNanos);
+            }
+        }
+        for (Ticket ticket : granted) {
+            ticket.granted.countDown();
+            if (ticket.onGranted != null) {
+                ticket.onGranted.run();
+            }
+        }
+    }
+
+    /**
+     * A request for a slot.
+     */
+    public static final class Ticket implements Comparable<Ticket> {
+        private static final int QUEUED = 0;
+        private static final int GRANTED = 1;
+        private static final int DONE = 2;
+
+        final long sequence;
+        final Runnable onPreempted;
+        private final Runnable onGranted;
+        private final CountDownLatch granted = new CountDownLatch(1);
+        volatile int priority;
+        private int state = QUEUED;
+        private long queuedNanos;
+        private long grantNanos;
+
+        Ticket(int priority, long sequence, Runnable onGranted, Runnable onPreempted) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.onGranted = onGranted;
+            this.onPreempted = onPreempted;
+        }
+
+        /**
+         * Returns the current priority of the request.
+         *
+         * @return Priority.
+         */
+        public int getPriority() {
+            return priority;
+        }
+
+        @Override
+        public int compareTo(Ticket other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
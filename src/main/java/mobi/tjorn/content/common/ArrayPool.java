@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 TJORN LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobi.tjorn.content.common;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * A bounded pool of primitive arrays backing {@link Column}s.  Arrays are pooled by length,
+ * and lengths are rounded up to a power of two so that arrays of similar sizes are shared.
+ * Released columns return their arrays here, and column builders obtain their arrays from here,
+ * so loaders that refresh large columns do not allocate new arrays every cycle.
+ * </p>
+ * <p>
+ * The class is thread safe.
+ * </p>
+ */
+public class ArrayPool {
+    private static final ArrayPool DEFAULT = new ArrayPool(4 * 1024 * 1024);
+
+    private final int maxBytes;
+    private final Map<Integer, ArrayDeque<Object>> ints = new HashMap<Integer, ArrayDeque<Object>>();
+    private final Map<Integer, ArrayDeque<Object>> longs = new HashMap<Integer, ArrayDeque<Object>>();
+    private final Map<Integer, ArrayDeque<Object>> doubles = new HashMap<Integer, ArrayDeque<Object>>();
+    private int pooledBytes;
+
+    /**
+     * Initializes new pool.
+     *
+     * @param maxBytes Maximum total size of the pooled arrays.  Arrays recycled while
+     *                 the pool is full are left to the garbage collector.
+     */
+    public ArrayPool(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the pool used by column builders created without an explicit pool.
+     *
+     * @return Default pool, holding up to 4 MB of arrays.
+     */
+    public static ArrayPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the total size of the pooled arrays.
+     *
+     * @return Size in bytes.
+     */
+    public synchronized int getPooledBytes() {
+        return pooledBytes;
+    }
+
+    /**
+     * Returns an {@code int} array of at least {@code minLength} elements.  The contents
+     * of a reused array are undefined.
+     *
+     * @param minLength Minimum length.
+     * @return An array.
+     */
+    public int[] obtainInts(int minLength) {
+        final int length = roundUp(minLength);
+        final int[] array = (int[]) poll(ints, length, 4);
+        return array != null ? array : new int[length];
+    }
+
+    /**
+     * Returns a {@code long} array of at least {@code minLength} elements.  The contents
+     * of a reused array are undefined.
+     *
+     * @param minLength Minimum length.
+     * @return An array.
+     */
+    public long[] obtainLongs(int minLength) {
+        final int length = roundUp(minLength);
+        final long[] array = (long[]) poll(longs, length, 8);
+        return array != null ? array : new long[length];
+    }
+
+    /**
+     * Returns a {@code double} array of at least {@code minLength} elements.  The contents
+     * of a reused array are undefined.
+     *
+     * @param minLength Minimum length.
+     * @return An array.
+     */
+    public double[] obtainDoubles(int minLength) {
+        final int length = roundUp(minLength);
+        final double[] array = (double[]) poll(doubles, length, 8);
+        return array != null ? array : new double[length];
+    }
+
+    /**
+     * Returns an array to the pool.  The caller must not use the array afterwards.
+     *
+     * @param array Array obtained from {@link #obtainInts(int)}.
+     */
+    public void recycle(int[] array) {
+        offer(ints, array, array.length, 4);
+    }
+
+    /**
+     * Returns an array to the pool.  The caller must not use the array afterwards.
+     *
+     * @param array Array obtained from {@link #obtainLongs(int)}.
+     */
+    public void recycle(long[] array) {
+        offer(longs, array, array.length, 8);
+    }
+
+    /**
+     * Returns an array to the pool.  The caller must not use the array afterwards.
+     *
+     * @param array Array obtained from {@link #obtainDoubles(int)}.
+     */
+    public void recycle(double[] array) {
+        offer(doubles, array, array.length, 8);
+    }
+
+    private synchronized Object poll(Map<Integer, ArrayDeque<Object>> arrays, int length, int elementBytes) {
+        final ArrayDeque<Object> deque = arrays.get(length);
+        final Object array = deque != null ? deque.poll() : null;
+        if (array != null) {
+            pooledBytes -= length * elementBytes;
+        }
+        return array;
+    }
+
+    private synchronized void offer(Map<Integer, ArrayDeque<Object>> arrays, Object array, int length,
+                                    int elementBytes) {
+        // Arrays not obtained from a pool may have any length; keep only pool-sized ones
+        if (length == 0 || Integer.bitCount(length) != 1 || pooledBytes + length * elementBytes > maxBytes) {
+            return;
+        }
+        ArrayDeque<Object> deque = arrays.get(length);
+        if (deque == null) {
+            deque = new ArrayDeque<Object>();
+            arrays.put(length, deque);
+        }
+        deque.push(array);
+        pooledBytes += length * elementBytes;
+    }
+
+    private static int roundUp(int minLength) {
+        if (minLength <= 1) {
+            return 1;
+        }
+        final int length = Integer.highestOneBit(minLength - 1) << 1;
+        if (length <= 0) {
+            throw new IllegalArgumentException("Array too large: " + minLength);
+        }
+        return length;
+    }
+}
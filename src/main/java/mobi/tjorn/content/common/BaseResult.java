@@ -33,6 +33,7 @@ public abstract class BaseResult<D, T> implements Result {
     protected BaseResult(D data, T error) {
         this.data = data;
         this.error = error;
+        ResultLeakTracker.onCreated(this);
     }
 
     /**
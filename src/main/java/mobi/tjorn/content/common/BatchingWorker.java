@@ -0,0 +1,303 @@
+/*
+ * Copyright 2016 TJORN LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobi.tjorn.content.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import mobi.tjorn.content.loaders.WorkerLoader;
+
+/**
+ * <p>
+ * A {@link WorkerLoaderDelegate.Worker} that does not load its data item by itself.  Instead,
+ * it enqueues a keyed request with a shared {@link Batcher}.  The {@link Batcher} collects
+ * requests from many loaders and loads them with a single call to a {@link BatchFunction},
+ * for example a single JNI call, then fans the results out to the loaders.
+ * </p>
+ * <p>
+ * Create one {@link Batcher} per data source and one {@link BatchingWorker} per {@link WorkerLoader}:
+ * </p>
+ * <pre>
+ * new RowLoader(context, new BatchingWorker&lt;Long, SimpleResult&lt;Row&gt;&gt;(ROW_BATCHER, rowId));
+ * </pre>
+ *
+ * @param <K> Request key.
+ * @param <D> Data item to load.
+ */
+public class BatchingWorker<K, D> implements WorkerLoaderDelegate.Worker<D> {
+    private final Batcher<K, D> batcher;
+    private final K key;
+    private Request<K, D> request;
+
+    /**
+     * Initializes new worker.
+     *
+     * @param batcher A {@link Batcher} shared by all loaders of the same data source.
+     * @param key     The key of the data item this worker loads.
+     */
+    public BatchingWorker(Batcher<K, D> batcher, K key) {
+        this.batcher = batcher;
+        this.key = key;
+    }
+
+    @Override
+    public void start(WorkerLoaderDelegate.ResultListener<D> listener) {
+        request = batcher.enqueue(key, listener);
+    }
+
+    /**
+     * Removes the request from the pending batch.  If the batch is already being loaded,
+     * the loaded data item is delivered to the listener and released by the loader.
+     */
+    @Override
+    public void cancel() {
+        if (request != null) {
+            batcher.cancel(request);
+            request = null;
+        }
+    }
+
+    /**
+     * Loads data items for a batch of keys.  Called on the {@link Batcher} thread.
+     *
+     * @param <K> Request key.
+     * @param <D> Data item to load.
+     */
+    public interface BatchFunction<K, D> {
+        /**
+         * Loads data items for a batch of keys.
+         *
+         * @param keys Keys in the order of enqueued requests.  The same key may appear
+         *             more than once if several loaders requested it.
+         * @return Data items, one for each key, in the same order as {@code keys}.
+         * If the list has a different size, the {@link Result}s in it are released and every
+         * key gets an error data item.
+         */
+        List<D> load(List<K> keys);
+
+        /**
+         * Creates a data item that reports a failed batch.
+         *
+         * @param key   The key whose data item could not be loaded.
+         * @param error Exception thrown by {@link #load(List)}, or an exception wrapping
+         *              an {@link Error} thrown by it or describing a list of the wrong size.
+         * @return An error data item.
+         */
+        D createErrorResult(K key, RuntimeException error);
+    }
+
+    /**
+     * Collects requests enqueued by {@link BatchingWorker}s and loads them in batches.
+     * A batch is loaded when its collection window elapses or when it reaches the maximum
+     * batch size, whichever happens first.
+     *
+     * @param <K> Request key.
+     * @param <D> Data item to load.
+     */
+    public static class Batcher<K, D> {
+        private final BatchFunction<K, D> function;
+        private final long windowMillis;
+        private final int maxBatchSize;
+        private final ScheduledExecutorService executor;
+        private final List<Request<K, D>> pending = new ArrayList<Request<K, D>>();
+        private final Runnable flush = new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+        private ScheduledFuture<?> scheduledFlush;
+        private int batchCount;
+        private int requestCount;
+        private int canceledCount;
+
+        /**
+         * Initializes new batcher.
+         *
+         * @param function     Loads batches.
+         * @param windowMillis How long to collect requests after the first request of a batch.
+         * @param maxBatchSize A batch reaching this size is loaded without waiting for the window.
+         */
+        public Batcher(BatchFunction<K, D> function, long windowMillis, int maxBatchSize) {
+            if (maxBatchSize < 1) {
+                throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+            }
+            this.function = function;
+            this.windowMillis = windowMillis;
+            this.maxBatchSize = maxBatchSize;
+            this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "Batcher");
+                }
+            });
+        }
+
+        /**
+         * Returns the number of batches loaded so far.
+         *
+         * @return Number of batches.
+         */
+        public synchronized int getBatchCount() {
+            return batchCount;
+        }
+
+        /**
+         * Returns the number of requests enqueued so far.
+         *
+         * @return Number of requests.
+         */
+        public synchronized int getRequestCount() {
+            return requestCount;
+        }
+
+        /**
+         * Returns the number of requests removed from pending batches.
+         *
+         * @return Number of canceled requests.
+         */
+        public synchronized int getCanceledCount() {
+            return canceledCount;
+        }
+
+        /**
+         * Stops the batcher thread.  Pending requests are dropped.
+         */
+        public void shutdown() {
+            synchronized (this) {
+                pending.clear();
+            }
+            executor.shutdownNow();
+        }
+
+        synchronized Request<K, D> enqueue(K key, WorkerLoaderDelegate.ResultListener<D> listener) {
+            final Request<K, D> request = new Request<K, D>(key, listener);
+            pending.add(request);
+            requestCount++;
+            if (pending.size() >= maxBatchSize) {
+                if (scheduledFlush != null) {
+                    scheduledFlush.cancel(false);
+                }
+                scheduledFlush = executor.schedule(flush, 0, TimeUnit.MILLISECONDS);
+            } else if (scheduledFlush == null) {
+                scheduledFlush = executor.schedule(flush, windowMillis, TimeUnit.MILLISECONDS);
+            }
+            return request;
+        }
+
+        synchronized void cancel(Request<K, D> request) {
+            if (pending.remove(request)) {
+                canceledCount++;
+            }
+        }
+
+        private void flush() {
+            final List<Request<K, D>> requests;
+            synchronized (this) {
+                requests = new ArrayList<Request<K, D>>(pending);
+                pending.clear();
+                scheduledFlush = null;
+            }
+            Throwable thrown = null;
+            for (int start = 0; start < requests.size(); start += maxBatchSize) {
+                try {
+                    load(requests.subList(start, Math.min(requests.size(), start + maxBatchSize)));
+                } catch (Throwable e) {
+                    // Load the remaining batches before reporting the failure
+                    if (thrown == null) {
+                        thrown = e;
+                    }
+                }
+            }
+            rethrow(thrown);
+        }
+
+        private void load(List<Request<K, D>> batch) {
+            final List<K> keys = new ArrayList<K>(batch.size());
+            for (Request<K, D> request : batch) {
+                keys.add(request.key);
+            }
+            synchronized (this) {
+                batchCount++;
+            }
+            List<D> results = null;
+            RuntimeException loadError = null;
+            Throwable thrown = null;
+            try {
+                results = function.load(keys);
+                if (results == null || results.size() != keys.size()) {
+                    loadError = new IllegalStateException("Expected " + keys.size() + " results, got "
+                            + (results == null ? null : results.size()));
+                    releaseAll(results);
+                    results = null;
+                }
+            } catch (RuntimeException e) {
+                loadError = e;
+            } catch (Error e) {
+                loadError = new RuntimeException(e);
+                thrown = e;
+            }
+            // Every request of the batch gets a data item, even if a listener throws
+            for (int i = 0; i < batch.size(); i++) {
+                try {
+                    batch.get(i).listener.onResult(results != null ? results.get(i)
+                            : function.createErrorResult(keys.get(i), loadError));
+                } catch (Throwable e) {
+                    if (thrown == null) {
+                        thrown = e;
+                    }
+                }
+            }
+            rethrow(thrown);
+        }
+
+        private void releaseAll(List<D> results) {
+            if (results == null) {
+                return;
+            }
+            for (D data : results) {
+                if (data instanceof Result && !((Result) data).isReleased()) {
+                    ((Result) data).release();
+                }
+            }
+        }
+
+        private static void rethrow(Throwable thrown) {
+            if (thrown instanceof Error) {
+                throw (Error) thrown;
+            }
+            if (thrown != null) {
+                throw (RuntimeException) thrown;
+            }
+        }
+    }
+
+    private static class Request<K, D> {
+        private final K key;
+        private final WorkerLoaderDelegate.ResultListener<D> listener;
+
+        Request(K key, WorkerLoaderDelegate.ResultListener<D> listener) {
+            this.key = key;
+            this.listener = listener;
+        }
+    }
+}
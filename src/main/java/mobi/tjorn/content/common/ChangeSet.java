@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016 TJORN LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobi.tjorn.content.common;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Content changes accumulated since the previous load, handed to a background load
+ * together with the previously delivered data item so the load can patch the data item
+ * instead of rebuilding it.
+ *
+ * @param <D> Data item.
+ */
+public class ChangeSet<D> {
+    private final D previous;
+    private final List<Object> changes;
+    private final boolean fullReload;
+
+    ChangeSet(D previous, List<Object> changes, boolean fullReload) {
+        this.previous = previous;
+        this.changes = Collections.unmodifiableList(changes);
+        this.fullReload = fullReload;
+    }
+
+    /**
+     * Returns the data item delivered by the previous load.  The data item is still owned
+     * by the loader and may be displayed on the main thread: prefer building a new data item
+     * from it over modifying it in place.  It is not released before the load returns.
+     *
+     * @return Previous data item, or {@code null} if nothing was delivered yet.
+     */
+    public D getPrevious() {
+        return previous;
+    }
+
+    /**
+     * Returns the change descriptors in the order they were reported.
+     *
+     * @return Change descriptors.  Empty if {@link #isFullReload()} returns {@code true}.
+     */
+    public List<Object> getChanges() {
+        return changes;
+    }
+
+    /**
+     * Checks if the data item has to be rebuilt from scratch.  That is the case when there is
+     * no previous data item, when the change log overflowed, when a change was reported without
+     * a descriptor, or when a load was forced without any reported change.
+     *
+     * @return {@code true} if the load must rebuild the data item, {@code false} if it can
+     * patch {@link #getPrevious()} with {@link #getChanges()}.
+     */
+    public boolean isFullReload() {
+        return fullReload;
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2016 TJORN LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobi.tjorn.content.common;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Stops loads from hitting a backend that keeps failing.  Each key (e.g., a host) has its own
+ * circuit:
+ * </p>
+ * <ul>
+ * <li>{@link State#CLOSED}: loads run.  When {@code failureThreshold} loads fail within
+ * {@code windowMillis}, the circuit opens.</li>
+ * <li>{@link State#OPEN}: loads fail fast, without running, for {@code coolDownMillis}.</li>
+ * <li>{@link State#HALF_OPEN}: after the cool-down, a single probe load runs while other loads
+ * keep failing fast.  The circuit closes if the probe succeeds and opens again if it fails.
+ * Outcomes of loads that started before the probe are ignored.</li>
+ * </ul>
+ * <p>
+ * Share one {@link CircuitBreaker} between all loaders that hit the same backends.
+ * Only circuits that are not closed, or that have recent failures, are kept.
+ * The class is thread safe.
+ * </p>
+ */
+public class CircuitBreaker {
+    private final int failureThreshold;
+    private final long windowMillis;
+    private final long coolDownMillis;
+    private final Map<Object, Circuit> circuits = new HashMap<Object, Circuit>();
+    private volatile Listener listener;
+    private int openedCount;
+    private int halfOpenedCount;
+    private int closedCount;
+    private int rejectedCount;
+
+    /**
+     * Initializes new circuit breaker.
+     *
+     * @param failureThreshold Number of failures that open a circuit.
+     * @param windowMillis     Time window the failures must happen within.
+     * @param coolDownMillis   Time an open circuit fails loads fast before it lets a probe through.
+     */
+    public CircuitBreaker(int failureThreshold, long windowMillis, long coolDownMillis) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("failureThreshold must be positive: " + failureThreshold);
+        }
+        this.failureThreshold = failureThreshold;
+        this.windowMillis = windowMillis;
+        this.coolDownMillis = coolDownMillis;
+    }
+
+    /**
+     * Sets a listener notified of state transitions.
+     *
+     * @param listener Listener, or {@code null}.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Checks if a load may run.  Every returned {@link Permit} must be passed to
+     * {@link #onSuccess(Permit)}, {@link #onFailure(Permit, Result)} or {@link #onCanceled(Permit)}
+     * once the load completes.
+     *
+     * @param key Circuit key.
+     * @return A permit to run the load, or {@code null} if the load should fail fast.
+     */
+    public Permit tryAcquire(Object key) {
+        final Permit permit = new Permit(key);
+        final State from;
+        synchronized (this) {
+            final Circuit circuit = circuits.get(key);
+            if (circuit == null) {
+                return permit;
+            }
+            if (circuit.state == State.CLOSED) {
+                final long now = now();
+                while (!circuit.failures.isEmpty() && now - circuit.failures.peekFirst() > windowMillis) {
+                    circuit.failures.pollFirst();
+                }
+                if (circuit.failures.isEmpty()) {
+                    circuits.remove(key);
+                }
+                return permit;
+            }
+            if (circuit.state == State.HALF_OPEN || now() - circuit.openedAt < coolDownMillis) {
+                rejectedCount++;
+                return null;
+            }
+            from = circuit.state;
+            circuit.state = State.HALF_OPEN;
+            circuit.probe = permit;
+            halfOpenedCount++;
+        }
+        notifyListener(key, from, State.HALF_OPEN);
+        return permit;
+    }
+
+    /**
+     * Reports a load that succeeded.
+     *
+     * @param permit Permit returned by {@link #tryAcquire(Object)} for the load.
+     */
+    public void onSuccess(Permit permit) {
+        final State from;
+        synchronized (this) {
+            final Circuit circuit = circuits.get(permit.key);
+            if (circuit == null) {
+                return;
+            }
+            if (circuit.state == State.CLOSED) {
+                // Recent failures still count; they age out of the window
+                return;
+            }
+            if (circuit.probe != permit) {
+                // Started before the circuit opened, or not the probe
+                return;
+            }
+            from = circuit.state;
+            circuits.remove(permit.key);
+            closedCount++;
+        }
+        notifyListener(permit.key, from, State.CLOSED);
+    }
+
+    /**
+     * Reports a load that failed.
+     *
+     * @param permit  Permit returned by {@link #tryAcquire(Object)} for the load.
+     * @param failure The error {@link Result} of the load, may be {@code null}.  It is kept
+     *                for fail-fast loads only if it is in Released state, i.e. it can be shared.
+     */
+    public void onFailure(Permit permit, Result failure) {
+        final State from;
+        synchronized (this) {
+            Circuit circuit = circuits.get(permit.key);
+            if (circuit == null) {
+                circuit = new Circuit();
+                circuits.put(permit.key, circuit);
+            }
+            if (circuit.state != State.CLOSED && circuit.probe != permit) {
+                // Started before the circuit opened, or not the probe
+                return;
+            }
+            circuit.lastFailure = failure != null && failure.isReleased() ? failure : null;
+            final long now = now();
+            if (circuit.state == State.CLOSED) {
+                circuit.failures.addLast(now);
+                while (now - circuit.failures.peekFirst() > windowMillis) {
+                    circuit.failures.pollFirst();
+                }
+                if (circuit.failures.size() < failureThreshold) {
+                    return;
+                }
+            }
+            from = circuit.state;
+            circuit.state = State.OPEN;
+            circuit.openedAt = now;
+            circuit.probe = null;
+            circuit.failures.clear();
+            openedCount++;
+        }
+        notifyListener(permit.key, from, State.OPEN);
+    }
+
+    /**
+     * Reports a load that was canceled before it completed.  A canceled probe lets the next
+     * load through as a new probe.
+     *
+     * @param permit Permit returned by {@link #tryAcquire(Object)} for the load.
+     */
+    public void onCanceled(Permit permit) {
+        final State from;
+        synchronized (this) {
+            final Circuit circuit = circuits.get(permit.key);
+            if (circuit == null || circuit.state != State.HALF_OPEN || circuit.probe != permit) {
+                return;
+            }
+            from = circuit.state;
+            circuit.state = State.OPEN;
+            circuit.openedAt = now() - coolDownMillis;
+            circuit.probe = null;
+        }
+        notifyListener(permit.key, from, State.OPEN);
+    }
+
+    /**
+     * Returns the state of a circuit.
+     *
+     * @param key Circuit key.
+     * @return Circuit state.
+     */
+    public synchronized State getState(Object key) {
+        final Circuit circuit = circuits.get(key);
+        return circuit != null ? circuit.state : State.CLOSED;
+    }
+
+    /**
+     * Returns the error {@link Result} of the last failed load of a circuit, if it can be shared.
+     *
+     * @param key Circuit key.
+     * @return The last failure in Released state, or {@code null}.
+     */
+    public synchronized Result getSharedFailure(Object key) {
+        final Circuit circuit = circuits.get(key);
+        return circuit != null ? circuit.lastFailure : null;
+    }
+
+    /**
+     * Returns the number of times circuits opened.
+     *
+     * @return Number of transitions to {@link State#OPEN}.
+     */
+    public synchronized int getOpenedCount() {
+        return openedCount;
+    }
+
+    /**
+     * Returns the number of probe loads let through.
+     *
+     * @return Number of transitions to {@link State#HALF_OPEN}.
+     */
+    public synchronized int getHalfOpenedCount() {
+        return halfOpenedCount;
+    }
+
+    /**
+     * Returns the number of times circuits closed after a successful probe.
+     *
+     * @return Number of transitions to {@link State#CLOSED}.
+     */
+    public synchronized int getClosedCount() {
+        return closedCount;
+    }
+
+    /**
+     * Returns the number of loads that failed fast.
+     *
+     * @return Number of rejected loads.
+     */
+    public synchronized int getRejectedCount() {
+        return rejectedCount;
+    }
+
+    long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private void notifyListener(Object key, State from, State to) {
+        final Listener listener = this.listener;
+        if (listener != null) {
+            listener.onStateChanged(key, from, to);
+        }
+    }
+
+    /**
+     * Circuit state.
+     */
+    public enum State {
+        /**
+         * Loads run.
+         */
+        CLOSED,
+        /**
+         * Loads fail fast.
+         */
+        OPEN,
+        /**
+         * A single probe load runs; other loads fail fast.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * Permission to run a single load, returned by {@link #tryAcquire(Object)}.
+     */
+    public static final class Permit {
+        private final Object key;
+
+        Permit(Object key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Creates the {@link Result}s of loads that fail fast.
+     *
+     * @param <R> Loaded {@link Result}.
+     */
+    public interface FailFastHandler<R extends Result> {
+        /**
+         * Called on a background thread instead of a load while its circuit is open.
+         *
+         * @param key           Circuit key.
+         * @param sharedFailure The last failure of the circuit if it is in Released state
+         *                      and can be shared, or {@code null}.  It may come from a loader
+         *                      of another {@link Result} type that shares the circuit.
+         * @return The {@link Result} to deliver, never {@code null}.
+         */
+        R createFailFastResult(Object key, Result sharedFailure);
+    }
+
+    /**
+     * Receives state transitions.
+     */
+    public interface Listener {
+        /**
+         * Called on the thread that reported the load outcome or requested the probe.
+         *
+         * @param key  Circuit key.
+         * @param from Previous state.
+         * @param to   New state.
+         */
+        void onStateChanged(Object key, State from, State to);
+    }
+
+    private static class Circuit {
+        private final ArrayDeque<Long> failures = new ArrayDeque<Long>();
+        private State state = State.CLOSED;
+        private long openedAt;
+        private Permit probe;
+        private Result lastFailure;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 TJORN LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobi.tjorn.content.common;
+
+/**
+ * <p>
+ * A named column of values backed by a primitive array, part of a {@link ColumnarResult}.
+ * Columns are built on a background thread with their {@code Builder}s, and are read
+ * with typed getters that do not box values.
+ * </p>
+ * <p>
+ * A column owns its array: {@link #release()} returns the array to the {@link ArrayPool}
+ * the column was built with, and the column must not be read afterwards.
+ * {@link #slice(int, int)} returns a view that shares the array without copying.  A view does
+ * not own the array: it is always in Released state.  Reading a column, or a view of it,
+ * after the column is released throws {@link IllegalStateException}.
+ * </p>
+ */
+public abstract class Column implements Result {
+    static final int INITIAL_CAPACITY = 16;
+
+    private final String name;
+    final int offset;
+    private final int size;
+    private final ArrayPool pool;
+    private final Column owner;
+    private volatile boolean released;
+
+    Column(String name, int offset, int size, ArrayPool pool, Column owner) {
+        this.name = name;
+        this.offset = offset;
+        this.size = size;
+        this.pool = pool;
+        this.owner = owner != null ? owner : this;
+    }
+
+    /**
+     * Returns the column name.
+     *
+     * @return Column name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of values.
+     *
+     * @return Number of rows.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns a view of a range of rows that shares this column's array.
+     *
+     * @param from First row, inclusive.
+     * @param to   Last row, exclusive.
+     * @return A view in Released state.
+     */
+    public abstract Column slice(int from, int to);
+
+    /**
+     * Checks if this column is a view returned by {@link #slice(int, int)}.
+     *
+     * @return {@code true} for views, {@code false} for columns that own their array.
+     */
+    public boolean isSlice() {
+        return pool == null;
+    }
+
+    @Override
+    public boolean isReleased() {
+        return pool == null || released;
+    }
+
+    @Override
+    public void release() {
+        synchronized (this) {
+            if (pool == null || released) {
+                return;
+            }
+            released = true;
+        }
+        ResultLeakTracker.onReleased(this);
+        recycle(pool);
+    }
+
+    abstract void recycle(ArrayPool pool);
+
+    // Returns the column that owns the array
+    final Column getOwner() {
+        return owner;
+    }
+
+    final int index(int row) {
+        checkOwnerNotReleased();
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("row " + row + ", size " + size);
+        }
+        return offset + row;
+    }
+
+    final void checkSlice(int from, int to) {
+        checkOwnerNotReleased();
+        if (from < 0 || to > size || from > to) {
+            throw new IndexOutOfBoundsException("slice [" + from + ", " + to + "), size " + size);
+        }
+    }
+
+    // The array of a released column may already be reused by another column
+    private void checkOwnerNotReleased() {
+        if (owner.released) {
+            throw new IllegalStateException("Column " + name + " is released");
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016 TJORN LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobi.tjorn.content.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * A {@link BaseResult} that holds rows as {@link Column}s of primitive values instead of
+ * a list of objects, for loaders that return thousands of numeric rows (e.g., charts or
+ * telemetry).  Values are not boxed, and reading a column walks a single array.
+ * </p>
+ * <p>
+ * Build the columns with their {@code Builder}s in the background load.  {@link #release()}
+ * returns the column arrays to their {@link ArrayPool}.  {@link #slice(int, int)} returns
+ * a view of a range of rows without copying.
+ * </p>
+ * <pre>
+ * DoubleColumn.Builder values = new DoubleColumn.Builder("value");
+ * LongColumn.Builder times = new LongColumn.Builder("time");
+ * ...
+ * return new ColumnarResult(times.build(), values.build());
+ * </pre>
+ */
+public class ColumnarResult extends BaseResult<List<Column>, Throwable> {
+    private final Map<String, Column> columns;
+    private final int rowCount;
+
+    /**
+     * Initializes new result with columns.  The result takes ownership of the columns.
+     *
+     * @param columns Columns with unique names and the same number of rows.
+     */
+    public ColumnarResult(Column... columns) {
+        this(Arrays.asList(columns));
+    }
+
+    /**
+     * Initializes new result with columns.  The result takes ownership of the columns.
+     *
+     * @param columns Columns with unique names and the same number of rows.
+     */
+    public ColumnarResult(List<Column> columns) {
+        super(Collections.unmodifiableList(new ArrayList<Column>(columns)), null);
+        this.columns = new LinkedHashMap<String, Column>();
+        int rows = -1;
+        for (Column column : columns) {
+            if (this.columns.put(column.getName(), column) != null) {
+                throw new IllegalArgumentException("Duplicate column: " + column.getName());
+            }
+            if (rows != -1 && column.size() != rows) {
+                throw new IllegalArgumentException("Column " + column.getName() + " has " + column.size()
+                        + " rows, expected " + rows);
+            }
+            rows = column.size();
+        }
+        this.rowCount = Math.max(rows, 0);
+    }
+
+    /**
+     * Initializes new result with an error.
+     *
+     * @param error Loading error.
+     */
+    public ColumnarResult(Throwable error) {
+        super(Collections.<Column>emptyList(), error);
+        this.columns = Collections.emptyMap();
+        this.rowCount = 0;
+    }
+
+    /**
+     * Returns the number of rows.
+     *
+     * @return Number of rows.
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Returns a column by name.
+     *
+     * @param name Column name.
+     * @return The column, or {@code null} if there is no such column.
+     */
+    public Column getColumn(String name) {
+        return columns.get(name);
+    }
+
+    /**
+     * Returns an {@code int} column by name.
+     *
+     * @param name Column name.
+     * @return The column, or {@code null} if there is no such column.
+     * @throws ClassCastException If the column holds other values.
+     */
+    public IntColumn getIntColumn(String name) {
+        return (IntColumn) columns.get(name);
+    }
+
+    /**
+     * Returns a {@code long} column by name.
+     *
+     * @param name Column name.
+     * @return The column, or {@code null} if there is no such column.
+     * @throws ClassCastException If the column holds other values.
+     */
+    public LongColumn getLongColumn(String name) {
+        return (LongColumn) columns.get(name);
+    }
+
+    /**
+     * Returns a {@code double} column by name.
+     *
+     * @param name Column name.
+     * @return The column, or {@code null} if there is no such column.
+     * @throws ClassCastException If the column holds other values.
+     */
+    public DoubleColumn getDoubleColumn(String name) {
+        return (DoubleColumn) columns.get(name);
+    }
+
+    /**
+     * Returns a {@link String} column by name.
+     *
+     * @param name Column name.
+     * @return The column, or {@code null} if there is no such column.
+     * @throws ClassCastException If the column holds other values.
+     */
+    public StringColumn getStringColumn(String name) {
+        return (StringColumn) columns.get(name);
+    }
+
+    /**
+     * Returns a view of a range of rows that shares this result's arrays.  The view is in
+     * Released state; its columns throw {@link IllegalStateException} when read after
+     * this result is released.
+     *
+     * @param from First row, inclusive.
+     * @param to   Last row, exclusive.
+     * @return A view of the rows.
+     */
+    public ColumnarResult slice(int from, int to) {
+        if (hasError()) {
+            return this;
+        }
+        final List<Column> slices = new ArrayList<Column>(columns.size());
+        for (Column column : columns.values()) {
+            slices.add(column.slice(from, to));
+        }
+        return new ColumnarResult(slices);
+    }
+
+    @Override
+    public boolean isReleased() {
+        for (Column column : columns.values()) {
+            if (!column.isReleased()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void release() {
+        ResultLeakTracker.onReleased(this);
+        for (Column column : columns.values()) {
+            column.release();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016 TJORN LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobi.tjorn.content.common;
+
+/**
+ * A {@link Column} of {@code double} values.
+ */
+public final class DoubleColumn extends Column {
+    private double[] values;
+
+    DoubleColumn(String name, double[] values, int offset, int size, ArrayPool pool, Column owner) {
+        super(name, offset, size, pool, owner);
+        this.values = values;
+    }
+
+    /**
+     * Returns a value.
+     *
+     * @param row Row index.
+     * @return Value at the row.
+     */
+    public double get(int row) {
+        return values[index(row)];
+    }
+
+    /**
+     * Copies values to an array.
+     *
+     * @param from    First row, inclusive.
+     * @param to      Last row, exclusive.
+     * @param dest    Destination array.
+     * @param destPos First index in the destination array.
+     */
+    public void copyTo(int from, int to, double[] dest, int destPos) {
+        checkSlice(from, to);
+        System.arraycopy(values, offset + from, dest, destPos, to - from);
+    }
+
+    @Override
+    public DoubleColumn slice(int from, int to) {
+        checkSlice(from, to);
+        return new DoubleColumn(getName(), values, offset + from, to - from, null, getOwner());
+    }
+
+    @Override
+    void recycle(ArrayPool pool) {
+        pool.recycle(values);
+        values = null;
+    }
+
+    /**
+     * Builds a {@link DoubleColumn} on a background thread.  The backing array grows as values
+     * are added; grown-out arrays go back to the pool.  A builder builds a single column.
+     */
+    public static final class Builder {
+        private final String name;
+        private final ArrayPool pool;
+        private double[] values;
+        private int size;
+
+        /**
+         * Initializes new builder that uses {@link ArrayPool#getDefault()}.
+         *
+         * @param name Column name.
+         */
+        public Builder(String name) {
+            this(name, ArrayPool.getDefault());
+        }
+
+        /**
+         * Initializes new builder.
+         *
+         * @param name Column name.
+         * @param pool Pool to obtain arrays from and to return them to on release.
+         */
+        public Builder(String name, ArrayPool pool) {
+            this.name = name;
+            this.pool = pool;
+            this.values = pool.obtainDoubles(INITIAL_CAPACITY);
+        }
+
+        /**
+         * Appends a value.
+         *
+         * @param value Value to append.
+         * @return This builder.
+         */
+        public Builder add(double value) {
+            if (size == values.length) {
+                final double[] grown = pool.obtainDoubles(size + 1);
+                System.arraycopy(values, 0, grown, 0, size);
+                pool.recycle(values);
+                values = grown;
+            }
+            values[size++] = value;
+            return this;
+        }
+
+        /**
+         * Returns the number of values added so far.
+         *
+         * @return Number of values.
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Builds the column.  The column takes over the builder's array without copying it.
+         *
+         * @return A column in Not Released state.
+         */
+        public DoubleColumn build() {
+            if (values == null) {
+                throw new IllegalStateException("Column already built");
+            }
+            final DoubleColumn column = new DoubleColumn(name, values, 0, size, pool, null);
+            values = null;
+            return column;
+        }
+    }
+}
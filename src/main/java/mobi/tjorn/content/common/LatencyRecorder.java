@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 TJORN LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobi.tjorn.content.common;
+
+import java.util.Arrays;
+
+/**
+ * Keeps a sliding window of the most recent latency samples and computes percentiles over it.
+ * The class is thread safe.
+ */
+public class LatencyRecorder {
+    private final long[] samples;
+    private int count;
+    private int next;
+
+    /**
+     * Initializes new recorder.
+     *
+     * @param capacity Number of the most recent samples to keep.
+     */
+    public LatencyRecorder(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.samples = new long[capacity];
+    }
+
+    /**
+     * Adds a sample, evicting the oldest one if the window is full.
+     *
+     * @param latencyMillis Observed latency in milliseconds.
+     */
+    public synchronized void record(long latencyMillis) {
+        samples[next] = latencyMillis;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) {
+            count++;
+        }
+    }
+
+    /**
+     * Returns the number of samples in the window.
+     *
+     * @return Number of samples in the window.
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Computes a percentile of the samples in the window.
+     *
+     * @param percentile Percentile between {@code 0} and {@code 100}.
+     * @return The percentile in milliseconds, or {@code -1} if the window is empty.
+     */
+    public long percentile(double percentile) {
+        final long[] sorted;
+        synchronized (this) {
+            if (count == 0) {
+                return -1;
+            }
+            sorted = Arrays.copyOf(samples, count);
+        }
+        Arrays.sort(sorted);
+        final int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
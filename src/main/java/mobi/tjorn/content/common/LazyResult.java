@@ -0,0 +1,321 @@
+/*
+ * Copyright 2016 TJORN LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobi.tjorn.content.common;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * <p>
+ * A {@link Result} that holds a raw payload and decodes it section by section, on demand.
+ * A loader that fetches a large payload returns a {@link LazyResult} from its background load
+ * without decoding anything; the UI then asks for the cheap sections first (e.g., a header)
+ * with {@link #getSectionAsync(Section, Callback)}, and sections that are never asked for
+ * are never decoded.  Each section is decoded at most once.
+ * </p>
+ * <p>
+ * {@link #release()} drops the raw payload and all decoded sections; decoded sections
+ * that are {@link Result}s are released as well.
+ * </p>
+ */
+public class LazyResult implements Result {
+    private final Executor executor;
+    private final Throwable error;
+    private final Handler dispatcher = new Handler(Looper.getMainLooper());
+    private final Map<Section<?>, FutureTask<Object>> sections = new HashMap<Section<?>, FutureTask<Object>>();
+    private byte[] raw;
+    private boolean released;
+
+    /**
+     * Initializes new result with a raw payload.
+     *
+     * @param raw      Raw payload.
+     * @param executor Executor that decodes sections requested with
+     *                 {@link #getSectionAsync(Section, Callback)}.
+     */
+    public LazyResult(byte[] raw, Executor executor) {
+        this.raw = raw;
+        this.executor = executor;
+        this.error = null;
+        ResultLeakTracker.onCreated(this);
+    }
+
+    /**
+     * Initializes new result with an error.
+     *
+     * @param error Loading error.
+     */
+    public LazyResult(Throwable error) {
+        this.raw = null;
+        this.executor = null;
+        this.error = error;
+        ResultLeakTracker.onCreated(this);
+    }
+
+    /**
+     * Returns the loading error.
+     *
+     * @return Loading error, or {@code null}.
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * Checks if the result has a loading error.
+     *
+     * @return {@code true} if {@link #getError()} is not {@code null}, {@code false} otherwise.
+     */
+    public boolean hasError() {
+        return error != null;
+    }
+
+    /**
+     * Checks if a section has already been decoded.
+     *
+     * @param section Section to check.
+     * @return {@code true} if the section is decoded and {@link #getSection(Section)}
+     * will not block, {@code false} otherwise.
+     */
+    public synchronized boolean isDecoded(Section<?> section) {
+        final FutureTask<Object> task = sections.get(section);
+        return task != null && task.isDone();
+    }
+
+    /**
+     * Returns a section, decoding it on the calling thread if it was not decoded yet.
+     * If another thread is decoding the section, waits for it.
+     * Should not be called on the main thread unless {@link #isDecoded(Section)} returns {@code true}.
+     *
+     * @param section Section to return.
+     * @param <T>     Decoded section.
+     * @return Decoded section.
+     * @throws ExecutionException If the section could not be decoded.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getSection(Section<T> section) throws ExecutionException {
+        final FutureTask<Object> task = taskFor(section);
+        task.run();
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return (T) task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns a section through a callback.  If the section was not decoded yet, it is decoded
+     * on the executor passed to {@link #LazyResult(byte[], Executor)}.
+     * Must be called from the process's main thread.
+     *
+     * @param section  Section to return.
+     * @param callback Called on the main thread with the decoded section, or with the loading
+     *                 error if the result has one.  Not called if the result is released
+     *                 before the section is decoded.
+     * @param <T>      Decoded section.
+     */
+    public <T> void getSectionAsync(final Section<T> section, final Callback<T> callback) {
+        if (error != null) {
+            callback.onSectionFailed(section, error);
+            return;
+        }
+        if (isDecoded(section)) {
+            deliver(section, callback);
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final FutureTask<Object> task;
+                synchronized (LazyResult.this) {
+                    if (released) {
+                        return;
+                    }
+                    task = taskFor(section);
+                }
+                task.run();
+                dispatcher.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(section, callback);
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public synchronized boolean isReleased() {
+        return released;
+    }
+
+    @Override
+    public void release() {
+        final Map<Section<?>, FutureTask<Object>> decoded;
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+            released = true;
+            raw = null;
+            decoded = new HashMap<Section<?>, FutureTask<Object>>(sections);
+            sections.clear();
+        }
+        ResultLeakTracker.onReleased(this);
+        for (FutureTask<Object> task : decoded.values()) {
+            // A canceled task releases the section it decodes; see SectionTask.set()
+            if (!task.cancel(false) && !task.isCancelled()) {
+                try {
+                    releaseSection(task.get());
+                } catch (Exception e) {
+                    // Nothing to release
+                }
+            }
+        }
+    }
+
+    private synchronized FutureTask<Object> taskFor(final Section<?> section) {
+        if (released) {
+            throw new IllegalStateException("LazyResult is released");
+        }
+        if (error != null) {
+            throw new IllegalStateException("LazyResult has an error", error);
+        }
+        FutureTask<Object> task = sections.get(section);
+        if (task == null) {
+            final byte[] bytes = raw;
+            task = new SectionTask(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return section.decode(bytes);
+                }
+            });
+            sections.put(section, task);
+        }
+        return task;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> void deliver(Section<T> section, Callback<T> callback) {
+        final FutureTask<Object> task;
+        synchronized (this) {
+            task = sections.get(section);
+        }
+        if (task == null || !task.isDone() || task.isCancelled()) {
+            return;
+        }
+        final T value;
+        try {
+            value = (T) task.get();
+        } catch (ExecutionException e) {
+            callback.onSectionFailed(section, e.getCause());
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        callback.onSectionDecoded(section, value);
+    }
+
+    private static void releaseSection(Object value) {
+        if (value instanceof Result && !((Result) value).isReleased()) {
+            ((Result) value).release();
+        }
+    }
+
+    private static class SectionTask extends FutureTask<Object> {
+        SectionTask(Callable<Object> callable) {
+            super(callable);
+        }
+
+        @Override
+        protected void set(Object value) {
+            super.set(value);
+            // The result was released while the section was being decoded
+            if (isCancelled()) {
+                releaseSection(value);
+            }
+        }
+    }
+
+    /**
+     * A section of the raw payload.  Sections are compared by identity, so declare each section
+     * once, typically as a constant.
+     *
+     * @param <T> Decoded section.
+     */
+    public abstract static class Section<T> {
+        private final String name;
+
+        protected Section(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Decodes the section.  Called at most once per {@link LazyResult}, on a background thread.
+         *
+         * @param raw The raw payload.
+         * @return Decoded section.
+         * @throws Exception If the section cannot be decoded.
+         */
+        protected abstract T decode(byte[] raw) throws Exception;
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * Receives sections requested with {@link #getSectionAsync(Section, Callback)}.
+     *
+     * @param <T> Decoded section.
+     */
+    public interface Callback<T> {
+        /**
+         * Called on the main thread with a decoded section.
+         *
+         * @param section The requested section.
+         * @param value   Decoded section.  Owned by the {@link LazyResult}.
+         */
+        void onSectionDecoded(Section<T> section, T value);
+
+        /**
+         * Called on the main thread if the section could not be decoded.
+         *
+         * @param section The requested section.
+         * @param error   Exception thrown by {@link Section#decode(byte[])}.
+         */
+        void onSectionFailed(Section<T> section, Throwable error);
+    }
+}
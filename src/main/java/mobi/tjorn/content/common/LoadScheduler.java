@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016 TJORN LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobi.tjorn.content.common;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * An {@link AdaptiveLimiter} shared by all loaders of a process, whichever family they belong
+ * to, so that loads the user is waiting for are never starved by background work.
+ * </p>
+ * <ul>
+ * <li>Loads are queued by explicit priority: {@link #PRIORITY_VISIBLE} for loaders whose data
+ * is on screen, {@link #PRIORITY_OFFSCREEN} for started loaders whose data is not on screen,
+ * and {@link #PRIORITY_PREFETCH} for speculative loads.</li>
+ * <li>A loader that waits on an upstream loader through {@link LoaderDependency#await()} lends
+ * its priority to the upstream load while the upstream load is queued.</li>
+ * <li>When no slot is free, a running load with a lower priority than a waiting request is
+ * preempted: its slot is taken back, the load is canceled and queued again.  Preemption is
+ * cooperative: a {@code loadInBackground()} that checks {@code isLoadInBackgroundCanceled()}
+ * stops early, otherwise it runs to completion and its data item is discarded.</li>
+ * <li>The time requests spend in the queue is recorded per priority.</li>
+ * </ul>
+ * <p>
+ * Pass the scheduler to {@code setConcurrencyLimiter()} of each loader.  The class is thread safe.
+ * </p>
+ */
+public class LoadScheduler extends AdaptiveLimiter {
+    /**
+     * Priority of speculative loads nobody is waiting for.
+     */
+    public static final int PRIORITY_PREFETCH = 0;
+    /**
+     * Priority of started loaders whose data is not on screen.
+     */
+    public static final int PRIORITY_OFFSCREEN = 1;
+    /**
+     * Priority of loaders whose data is on screen.
+     */
+    public static final int PRIORITY_VISIBLE = 2;
+
+    private static final int LATENCY_WINDOW = 100;
+
+    private final Map<Integer, LatencyRecorder> queueLatencies = new HashMap<Integer, LatencyRecorder>();
+    private int preemptedCount;
+
+    /**
+     * Initializes new scheduler.
+     *
+     * @param initialLimit Initial number of concurrent loads.
+     * @param minLimit     The limit never drops below this value.
+     * @param maxLimit     The limit never grows above this value.
+     * @param tolerance    Latency, as a multiple of the lowest recent latency, above which
+     *                     the limit is decreased.
+     * @see AdaptiveLimiter#AdaptiveLimiter(int, int, int, double)
+     */
+    public LoadScheduler(int initialLimit, int minLimit, int maxLimit, double tolerance) {
+        super(initialLimit, minLimit, maxLimit, tolerance);
+    }
+
+    /**
+     * Computes a percentile of the time recent requests of a priority spent in the queue.
+     *
+     * @param priority   Priority the requests were granted at.
+     * @param percentile Percentile between {@code 0} and {@code 100}.
+     * @return The percentile in milliseconds, or {@code -1} if no request of that priority
+     * was granted yet.
+     */
+    public long getQueueLatency(int priority, double percentile) {
+        final LatencyRecorder recorder;
+        synchronized (this) {
+            recorder = queueLatencies.get(priority);
+        }
+        return recorder != null ? recorder.percentile(percentile) : -1;
+    }
+
+    /**
+     * Returns the number of running loads preempted in favor of higher-priority requests.
+     *
+     * @return Number of preempted loads.
+     */
+    public synchronized int getPreemptedCount() {
+        return preemptedCount;
+    }
+
+    @Override
+    Ticket selectVictim(Ticket waiting, List<Ticket> running) {
+        Ticket victim = null;
+        for (int i = 0; i < running.size(); i++) {
+            final Ticket ticket = running.get(i);
+            if (ticket.onPreempted == null || ticket.priority >= waiting.priority) {
+                continue;
+            }
+            // Lowest priority first, then the most recent one, which has done the least work
+            if (victim == null || ticket.priority < victim.priority
+                    || ticket.priority == victim.priority && ticket.sequence > victim.sequence) {
+                victim = ticket;
+            }
+        }
+        if (victim != null) {
+            preemptedCount++;
+        }
+        return victim;
+    }
+
+    @Override
+    void onGranted(Ticket ticket, long queuedNanos) {
+        LatencyRecorder recorder = queueLatencies.get(ticket.priority);
+        if (recorder == null) {
+            recorder = new LatencyRecorder(LATENCY_WINDOW);
+            queueLatencies.put(ticket.priority, recorder);
+        }
+        recorder.record(queuedNanos / 1000000);
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2016 TJORN LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobi.tjorn.content.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * A link between an upstream loader and a dependent loader that needs the upstream result
+ * to load its own data (for example, a token, then a profile).
+ * </p>
+ * <p>
+ * The dependent loader calls {@link #await()} from its background load.  The call returns
+ * as soon as the upstream loader has delivered its data.  When the upstream loader later delivers
+ * a different data item (e.g., after its content changed), only the dependent loaders that
+ * consumed the previous data item are notified with {@code onContentChanged()}.
+ * </p>
+ * <p>
+ * The upstream loader keeps owning its data item: the dependent loader must not release it
+ * and must not keep it after its background load returns.  Until then, the upstream loader
+ * defers releasing a data item the dependent loader consumed.  Both loaders are expected to be
+ * managed by the same {@code LoaderManager}.  The link is removed when the dependent loader
+ * is reset and restored when it starts again.
+ * </p>
+ *
+ * @param <D> Upstream data item.
+ */
+public class LoaderDependency<D> {
+    private static final int NOT_CONSUMED = -1;
+
+    private final TaskLoaderDelegate<D, ?> upstream;
+    private final TaskLoaderDelegate<?, ?> dependent;
+    private final List<D> held = new ArrayList<D>();
+    private final List<D> pendingReleases = new ArrayList<D>();
+    private D value;
+    private int version;
+    private int consumedVersion = NOT_CONSUMED;
+    private boolean detached;
+
+    LoaderDependency(TaskLoaderDelegate<D, ?> upstream, TaskLoaderDelegate<?, ?> dependent, D value) {
+        this.upstream = upstream;
+        this.dependent = dependent;
+        this.value = value;
+    }
+
+    /**
+     * Waits until the upstream data item is delivered.  Must be called on a background thread.
+     * While it waits, the upstream load is queued with at least the dependent loader's priority,
+     * and a dependent load that holds a limiter slot gives it up until the data item is delivered.
+     *
+     * @return Upstream data item.
+     * @throws InterruptedException If the waiting thread is interrupted, or if the dependent load
+     *                              is canceled or the dependent loader is reset.
+     */
+    public D await() throws InterruptedException {
+        return await(false, 0);
+    }
+
+    /**
+     * Waits until the upstream data item is delivered or the timeout elapses.
+     * Must be called on a background thread.
+     *
+     * @param timeoutMillis Maximum time to wait.
+     * @return Upstream data item, or {@code null} if the timeout elapsed.
+     * @throws InterruptedException If the waiting thread is interrupted, or if the dependent load
+     *                              is canceled or the dependent loader is reset.
+     */
+    public D await(long timeoutMillis) throws InterruptedException {
+        return await(true, timeoutMillis);
+    }
+
+    private D await(boolean timed, long timeoutMillis) throws InterruptedException {
+        final long deadline = System.nanoTime() / 1000000 + timeoutMillis;
+        synchronized (this) {
+            checkWaitCanceled();
+            if (value != null) {
+                return consume();
+            }
+        }
+        upstream.inheritPriority(dependent.loadPriority);
+        if (timed && timeoutMillis <= 0) {
+            return waitFor(true, deadline);
+        }
+        // The dependent load gives up its limiter slot while it waits, so the upstream load
+        // can run even if the dependent load held the last slot
+        final AdaptiveLimiter.Ticket suspended = dependent.suspendLoadSlot();
+        final D data = waitFor(timed, deadline);
+        dependent.resumeLoadSlot(suspended);
+        return data;
+    }
+
+    private synchronized D waitFor(boolean timed, long deadline) throws InterruptedException {
+        for (;;) {
+            checkWaitCanceled();
+            if (value != null) {
+                return consume();
+            }
+            final long remaining = deadline - System.nanoTime() / 1000000;
+            if (!timed) {
+                wait();
+            } else if (remaining > 0) {
+                wait(remaining);
+            } else {
+                return null;
+            }
+        }
+    }
+
+    private void checkWaitCanceled() throws InterruptedException {
+        if (detached || dependent.isBackgroundLoadCanceled()) {
+            throw new InterruptedException("Dependent load canceled");
+        }
+    }
+
+    private D consume() {
+        consumedVersion = version;
+        if (!held.contains(value)) {
+            held.add(value);
+        }
+        return value;
+    }
+
+    // Called on the main thread before the upstream loader releases a data item
+    synchronized boolean deferRelease(D data) {
+        for (D item : held) {
+            if (item == data) {
+                pendingReleases.add(data);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Called on the dependent background thread once its load returns
+    void endHold() {
+        final List<D> releases;
+        final boolean remove;
+        synchronized (this) {
+            held.clear();
+            releases = new ArrayList<D>(pendingReleases);
+            pendingReleases.clear();
+            remove = detached;
+        }
+        if (!releases.isEmpty()) {
+            upstream.postToMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    for (D data : releases) {
+                        upstream.releaseDeferred(data);
+                    }
+                }
+            });
+        }
+        if (remove) {
+            upstream.removeDependency(this);
+        }
+    }
+
+    // Called on the main thread when the dependent loader is reset
+    void detach() {
+        final boolean remove;
+        synchronized (this) {
+            detached = true;
+            value = null;
+            consumedVersion = NOT_CONSUMED;
+            notifyAll();
+            remove = held.isEmpty();
+        }
+        if (remove) {
+            upstream.removeDependency(this);
+        }
+    }
+
+    // Called on the main thread when the dependent loader starts after a reset
+    void attach() {
+        synchronized (this) {
+            if (!detached) {
+                return;
+            }
+            detached = false;
+        }
+        upstream.attachDependency(this);
+    }
+
+    // Called when the dependent load is canceled
+    synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    // Called on the main thread with the data item the upstream loader retained
+    void onDelivered(D retained) {
+        final boolean changed;
+        synchronized (this) {
+            if (retained != value) {
+                value = retained;
+                version++;
+                notifyAll();
+            }
+            changed = !detached && consumedVersion != NOT_CONSUMED && consumedVersion != version;
+            if (changed) {
+                consumedVersion = NOT_CONSUMED;
+            }
+        }
+        if (changed) {
+            dependent.loader.onContentChanged();
+        }
+    }
+}
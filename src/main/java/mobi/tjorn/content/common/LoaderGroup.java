@@ -0,0 +1,359 @@
+/*
+ * Copyright 2016 TJORN LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobi.tjorn.content.common;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Schedules per-item loads of a list screen as a unit, instead of one loader per item.
+ * </p>
+ * <ul>
+ * <li>Items passed to {@link #setVisibleItems(List)} are loaded in the order they are passed,
+ * so the items the user sees come first.</li>
+ * <li>Loads of items that leave the viewport are canceled; their data items go through
+ * {@link #onCanceled(Object, Result)}.</li>
+ * <li>Items completed within the same frame are delivered together with a single
+ * {@link Callbacks#onItemsLoaded(Map)} call on the main thread.</li>
+ * </ul>
+ * <p>
+ * The group owns delivered {@link Result}s and releases them on {@link #invalidate(Object)}
+ * and {@link #destroy()}.  All public methods must be called from the process's main thread.
+ * </p>
+ *
+ * @param <K> Item key.
+ * @param <R> Item {@link Result}.
+ */
+public class LoaderGroup<K, R extends Result> {
+    private static final long FRAME_MILLIS = 16;
+
+    private final ItemLoader<K, R> itemLoader;
+    private final Callbacks<K, R> callbacks;
+    private final ThreadPoolExecutor executor;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Map<K, ItemTask> tasks = new HashMap<K, ItemTask>();
+    private final Map<K, R> results = new HashMap<K, R>();
+    private final Map<ItemTask, R> completed = new LinkedHashMap<ItemTask, R>();
+    private final Runnable frameRequest = new Runnable() {
+        @Override
+        public void run() {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                FrameCallbackCompat.postFrameCallback(frame);
+            } else {
+                handler.postDelayed(frame, FRAME_MILLIS);
+            }
+        }
+    };
+    private final Runnable frame = new Runnable() {
+        @Override
+        public void run() {
+            dispatchCompleted();
+        }
+    };
+    private boolean frameScheduled;
+    private boolean destroyed;
+    private long sequence;
+    private int canceledCount;
+
+    /**
+     * Initializes new group.
+     *
+     * @param itemLoader  Loads single items on background threads.
+     * @param callbacks   Receives loaded items on the main thread.
+     * @param threadCount Number of background threads.
+     */
+    public LoaderGroup(ItemLoader<K, R> itemLoader, Callbacks<K, R> callbacks, int threadCount) {
+        this.itemLoader = itemLoader;
+        this.callbacks = callbacks;
+        this.executor = new ThreadPoolExecutor(threadCount, threadCount, 1, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "LoaderGroup");
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets the items in the viewport.  Items without a delivered {@link Result} are loaded,
+     * earlier items first.  Loads of items that are no longer in the viewport are canceled.
+     *
+     * @param keys Keys of the visible items, in priority order.
+     */
+    public void setVisibleItems(List<K> keys) {
+        if (destroyed) {
+            return;
+        }
+        final Set<K> visible = new HashSet<K>(keys);
+        for (ItemTask task : new ArrayList<ItemTask>(tasks.values())) {
+            if (!visible.contains(task.key)) {
+                cancel(task);
+            }
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            final K key = keys.get(i);
+            if (results.containsKey(key)) {
+                continue;
+            }
+            final ItemTask task = tasks.get(key);
+            if (task == null) {
+                final ItemTask newTask = new ItemTask(key, i, sequence++);
+                tasks.put(key, newTask);
+                executor.execute(newTask);
+            } else if (task.rank != i && executor.getQueue().remove(task)) {
+                task.rank = i;
+                executor.execute(task);
+            }
+        }
+    }
+
+    /**
+     * Returns the delivered {@link Result} of an item.
+     *
+     * @param key Item key.
+     * @return Item {@link Result}, or {@code null} if the item was not delivered yet.
+     */
+    public R getResult(K key) {
+        return results.get(key);
+    }
+
+    /**
+     * Releases the delivered {@link Result} of an item and cancels its load, if any.
+     * The item is loaded again the next time it is passed to {@link #setVisibleItems(List)}.
+     *
+     * @param key Item key.
+     */
+    public void invalidate(K key) {
+        final ItemTask task = tasks.get(key);
+        if (task != null) {
+            cancel(task);
+        }
+        release(results.remove(key));
+    }
+
+    /**
+     * Returns the number of item loads canceled because the items left the viewport
+     * or were invalidated.
+     *
+     * @return Number of canceled item loads.
+     */
+    public int getCanceledCount() {
+        return canceledCount;
+    }
+
+    /**
+     * Cancels all loads, releases all delivered {@link Result}s and stops the background threads.
+     */
+    public void destroy() {
+        destroyed = true;
+        for (ItemTask task : new ArrayList<ItemTask>(tasks.values())) {
+            cancel(task);
+        }
+        for (R result : results.values()) {
+            release(result);
+        }
+        results.clear();
+        executor.shutdown();
+        dispatchCompleted();
+    }
+
+    /**
+     * Called on the main thread with the data item of a canceled load.
+     * Releases the data item by default.
+     *
+     * @param key  Item key.
+     * @param data Data item of the canceled load.
+     */
+    protected void onCanceled(K key, R data) {
+        release(data);
+    }
+
+    /**
+     * Called on the main thread when {@link ItemLoader#loadItem(Object)} throws.
+     * The item is loaded again the next time it is passed to {@link #setVisibleItems(List)}.
+     * Does nothing by default.
+     *
+     * @param key   Item key.
+     * @param error Exception or error thrown by {@link ItemLoader#loadItem(Object)}.
+     */
+    protected void onItemFailed(K key, Throwable error) {
+    }
+
+    private void cancel(ItemTask task) {
+        task.canceled = true;
+        tasks.remove(task.key);
+        executor.getQueue().remove(task);
+        canceledCount++;
+    }
+
+    private void release(R data) {
+        if (data != null && !data.isReleased()) {
+            data.release();
+        }
+    }
+
+    private void onCompleted(ItemTask task, R data) {
+        synchronized (completed) {
+            completed.put(task, data);
+            if (frameScheduled) {
+                return;
+            }
+            frameScheduled = true;
+        }
+        handler.post(frameRequest);
+    }
+
+    private void dispatchCompleted() {
+        final Map<ItemTask, R> batch;
+        synchronized (completed) {
+            batch = new LinkedHashMap<ItemTask, R>(completed);
+            completed.clear();
+            frameScheduled = false;
+        }
+        final Map<K, R> delivered = new LinkedHashMap<K, R>();
+        for (Map.Entry<ItemTask, R> entry : batch.entrySet()) {
+            final ItemTask task = entry.getKey();
+            if (task.canceled || destroyed) {
+                onCanceled(task.key, entry.getValue());
+                continue;
+            }
+            tasks.remove(task.key);
+            if (task.failure != null) {
+                onItemFailed(task.key, task.failure);
+                continue;
+            }
+            if (entry.getValue() == null) {
+                // Nothing to cache; the item is loaded again when it is next visible
+                continue;
+            }
+            final R old = results.put(task.key, entry.getValue());
+            if (old != entry.getValue()) {
+                release(old);
+            }
+            delivered.put(task.key, entry.getValue());
+        }
+        if (!delivered.isEmpty()) {
+            callbacks.onItemsLoaded(delivered);
+        }
+    }
+
+    /**
+     * Loads single items.
+     *
+     * @param <K> Item key.
+     * @param <R> Item {@link Result}.
+     */
+    public interface ItemLoader<K, R extends Result> {
+        /**
+         * Called on a background thread to load an item.  Errors should be reported
+         * through the returned {@link Result}; an exception thrown by this method is reported
+         * to {@link LoaderGroup#onItemFailed(Object, Throwable)}.
+         *
+         * @param key Item key.
+         * @return Item {@link Result}, or {@code null} to leave the item unloaded; it is loaded
+         * again the next time it is passed to {@link LoaderGroup#setVisibleItems(List)}.
+         */
+        R loadItem(K key);
+    }
+
+    /**
+     * Receives loaded items.
+     *
+     * @param <K> Item key.
+     * @param <R> Item {@link Result}.
+     */
+    public interface Callbacks<K, R extends Result> {
+        /**
+         * Called on the main thread, at most once per frame, with the items completed
+         * since the previous call.  The {@link Result}s remain owned by the group.
+         *
+         * @param items Loaded items in completion order.
+         */
+        void onItemsLoaded(Map<K, R> items);
+    }
+
+    // Only used on API 16+; older versions post frames with the Handler
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class FrameCallbackCompat {
+        static void postFrameCallback(final Runnable frame) {
+            Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    frame.run();
+                }
+            });
+        }
+    }
+
+    private class ItemTask implements Runnable, Comparable<ItemTask> {
+        private final K key;
+        private final long sequence;
+        private volatile int rank;
+        private volatile boolean canceled;
+        private volatile Throwable failure;
+
+        ItemTask(K key, int rank, long sequence) {
+            this.key = key;
+            this.rank = rank;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            if (canceled) {
+                return;
+            }
+            R data = null;
+            try {
+                data = itemLoader.loadItem(key);
+            } catch (RuntimeException e) {
+                failure = e;
+            } catch (Error e) {
+                failure = e;
+                throw e;
+            } finally {
+                // Completes the item even if the load failed, so it does not stay in tasks
+                onCompleted(this, data);
+            }
+        }
+
+        @Override
+        public int compareTo(ItemTask other) {
+            if (rank != other.rank) {
+                return rank < other.rank ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
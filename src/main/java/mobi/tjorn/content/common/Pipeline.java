@@ -0,0 +1,310 @@
+/*
+ * Copyright 2016 TJORN LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobi.tjorn.content.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * <p>
+ * A {@link WorkerLoaderDelegate.Worker} that loads its data item in stages, each stage running
+ * on its own {@link Executor}.  For example, a fetch stage may run on an I/O executor while
+ * parse and transform stages run on a CPU-bound executor, so neither kind of work holds
+ * the other kind's threads.
+ * </p>
+ * <p>
+ * Each stage receives the value produced by the previous stage.  Once a stage returns,
+ * its input is released if the input is a {@link Result} other than the stage output.
+ * {@link #cancel()} interrupts the active stage and releases any intermediate {@link Result}
+ * the canceled load abandons.  A stage that throws ends the load with a result created
+ * by the {@link ErrorHandler}.
+ * </p>
+ * <pre>
+ * Pipeline&lt;SimpleResult&lt;Feed&gt;&gt; pipeline = Pipeline
+ *         .first("fetch", ioExecutor, fetchStage)
+ *         .then("parse", cpuExecutor, parseStage)
+ *         .then("wrap", cpuExecutor, wrapStage)
+ *         .build(errorHandler);
+ * </pre>
+ *
+ * @param <D> Data item produced by the last stage.
+ */
+public class Pipeline<D> implements WorkerLoaderDelegate.Worker<D> {
+    private final List<StageEntry> stages;
+    private final ErrorHandler<D> errorHandler;
+    private final TimingListener timingListener;
+    private Run run;
+
+    private Pipeline(List<StageEntry> stages, ErrorHandler<D> errorHandler, TimingListener timingListener) {
+        this.stages = stages;
+        this.errorHandler = errorHandler;
+        this.timingListener = timingListener;
+    }
+
+    /**
+     * Starts building a pipeline.
+     *
+     * @param name     Stage name reported to the {@link TimingListener}.
+     * @param executor Executor that runs the stage.
+     * @param stage    The first stage.  It receives {@code null} as its input.
+     * @param <O>      Output of the first stage.
+     * @return A builder to add more stages to.
+     */
+    public static <O> Builder<O> first(String name, Executor executor, Stage<Void, O> stage) {
+        return new Builder<O>(new ArrayList<StageEntry>()).add(name, executor, stage);
+    }
+
+    @Override
+    public void start(WorkerLoaderDelegate.ResultListener<D> listener) {
+        run = new Run(listener);
+        run.submit(0, null);
+    }
+
+    @Override
+    public void cancel() {
+        if (run != null) {
+            run.cancel();
+            run = null;
+        }
+    }
+
+    private static void release(Object value) {
+        if (value instanceof Result && !((Result) value).isReleased()) {
+            ((Result) value).release();
+        }
+    }
+
+    /**
+     * A single stage of a {@link Pipeline}.
+     *
+     * @param <I> Stage input.
+     * @param <O> Stage output.
+     */
+    public interface Stage<I, O> {
+        /**
+         * Called on the stage executor.  Long-running stages should respond
+         * to thread interruption, which is how {@link Pipeline#cancel()} reaches them.
+         *
+         * @param input Output of the previous stage, or {@code null} for the first stage.
+         * @return Stage output.
+         * @throws Exception If the stage fails.
+         */
+        O process(I input) throws Exception;
+    }
+
+    /**
+     * Creates a data item that reports a failed stage.
+     *
+     * @param <D> Data item produced by the pipeline.
+     */
+    public interface ErrorHandler<D> {
+        /**
+         * Called on the executor of the failed stage.
+         *
+         * @param stageName Name of the failed stage.
+         * @param error     Exception thrown by the stage, or an {@link ExecutionException}
+         *                  wrapping an {@link Error} thrown by it.
+         * @return An error data item.
+         */
+        D createErrorResult(String stageName, Exception error);
+    }
+
+    /**
+     * Receives per-stage timings.
+     */
+    public interface TimingListener {
+        /**
+         * Called on the stage executor when a stage completes, including failed stages.
+         *
+         * @param stageName  Stage name.
+         * @param waitMillis Time the stage spent queued on its executor.
+         * @param runMillis  Time the stage spent running.
+         */
+        void onStageFinished(String stageName, long waitMillis, long runMillis);
+    }
+
+    /**
+     * Builds {@link Pipeline}s.
+     *
+     * @param <T> Output of the last added stage.
+     */
+    public static class Builder<T> {
+        private final List<StageEntry> stages;
+        private TimingListener timingListener;
+
+        private Builder(List<StageEntry> stages) {
+            this.stages = stages;
+        }
+
+        /**
+         * Adds a stage.
+         *
+         * @param name     Stage name reported to the {@link TimingListener}.
+         * @param executor Executor that runs the stage.
+         * @param stage    The stage.  It receives the output of the previous stage.
+         * @param <O>      Output of the added stage.
+         * @return A builder to add more stages to.
+         */
+        public <O> Builder<O> then(String name, Executor executor, Stage<? super T, O> stage) {
+            return new Builder<O>(stages).add(name, executor, stage).withTimingListener(timingListener);
+        }
+
+        /**
+         * Sets a listener that receives per-stage timings.
+         *
+         * @param timingListener Timing listener, or {@code null}.
+         * @return This builder.
+         */
+        public Builder<T> withTimingListener(TimingListener timingListener) {
+            this.timingListener = timingListener;
+            return this;
+        }
+
+        /**
+         * Builds the pipeline.
+         *
+         * @param errorHandler Creates results for failed stages.
+         * @return New pipeline.
+         */
+        public Pipeline<T> build(ErrorHandler<T> errorHandler) {
+            if (errorHandler == null) {
+                throw new IllegalArgumentException("errorHandler is required");
+            }
+            return new Pipeline<T>(Collections.unmodifiableList(new ArrayList<StageEntry>(stages)),
+                    errorHandler, timingListener);
+        }
+
+        @SuppressWarnings("unchecked")
+        private Builder<T> add(String name, Executor executor, Stage<?, ?> stage) {
+            stages.add(new StageEntry(name, executor, (Stage<Object, Object>) stage));
+            return this;
+        }
+    }
+
+    private static class StageEntry {
+        private final String name;
+        private final Executor executor;
+        private final Stage<Object, Object> stage;
+
+        StageEntry(String name, Executor executor, Stage<Object, Object> stage) {
+            this.name = name;
+            this.executor = executor;
+            this.stage = stage;
+        }
+    }
+
+    private class Run {
+        private final WorkerLoaderDelegate.ResultListener<D> listener;
+        private boolean canceled;
+        private Object pending;
+        private FutureTask<Void> active;
+
+        Run(WorkerLoaderDelegate.ResultListener<D> listener) {
+            this.listener = listener;
+        }
+
+        void submit(final int index, final Object input) {
+            final StageEntry entry = stages.get(index);
+            final long queuedNanos = System.nanoTime();
+            final FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    execute(index, entry, input, queuedNanos);
+                    return null;
+                }
+            });
+            synchronized (this) {
+                if (canceled) {
+                    release(input);
+                    return;
+                }
+                pending = input;
+                active = task;
+            }
+            entry.executor.execute(task);
+        }
+
+        synchronized void cancel() {
+            canceled = true;
+            release(pending);
+            pending = null;
+            if (active != null) {
+                active.cancel(true);
+                active = null;
+            }
+        }
+
+        private void execute(int index, StageEntry entry, Object input, long queuedNanos) {
+            synchronized (this) {
+                if (canceled) {
+                    return;
+                }
+                pending = null;
+            }
+            final long startNanos = System.nanoTime();
+            Object output;
+            boolean failed = false;
+            Error fatal = null;
+            try {
+                output = entry.stage.process(input);
+            } catch (Exception e) {
+                output = e;
+                failed = true;
+            } catch (Error e) {
+                // Complete the load before the error propagates, so the loader does not hang
+                output = new ExecutionException(e);
+                failed = true;
+                fatal = e;
+            }
+            finish(index, entry, input, output, failed, queuedNanos, startNanos);
+            if (fatal != null) {
+                throw fatal;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void finish(int index, StageEntry entry, Object input, Object output, boolean failed,
+                            long queuedNanos, long startNanos) {
+            if (output != input) {
+                release(input);
+            }
+            if (timingListener != null) {
+                timingListener.onStageFinished(entry.name, (startNanos - queuedNanos) / 1000000,
+                        (System.nanoTime() - startNanos) / 1000000);
+            }
+            synchronized (this) {
+                if (canceled) {
+                    release(output);
+                    return;
+                }
+                active = null;
+            }
+            if (failed) {
+                listener.onResult(errorHandler.createErrorResult(entry.name, (Exception) output));
+            } else if (index == stages.size() - 1) {
+                listener.onResult((D) output);
+            } else {
+                submit(index + 1, output);
+            }
+        }
+    }
+}
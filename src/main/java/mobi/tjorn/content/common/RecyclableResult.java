@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016 TJORN LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobi.tjorn.content.common;
+
+/**
+ * <p>
+ * A {@link Result} that goes back to its {@link ResultPool} when it is released, so that
+ * its payload buffers are reused by a later load instead of becoming garbage.
+ * Obtain instances with {@link ResultPool#obtain()}.
+ * </p>
+ * <p>
+ * The result is safe to use with Result* Loaders: {@link #release()} is idempotent, so a result
+ * never enters its pool twice, and a result obtained from the pool is in Not Released state
+ * until it is released again.  Because a released result is handed out to other loads,
+ * never keep a reference to a result after the loader delivered a newer one, and never
+ * release a delivered result yourself: the loader releases it.
+ * </p>
+ *
+ * @param <D> Payload.
+ */
+public class RecyclableResult<D> implements Result {
+    private final ResultPool<D> pool;
+    private final D data;
+    private Throwable error;
+    private boolean released;
+
+    RecyclableResult(ResultPool<D> pool, D data) {
+        this.pool = pool;
+        this.data = data;
+    }
+
+    /**
+     * Returns the payload.  The payload is reused: fill it in the background load
+     * and read it on the main thread until the result is released.
+     *
+     * @return Payload.
+     */
+    public D getData() {
+        return data;
+    }
+
+    /**
+     * Returns the loading error.
+     *
+     * @return Loading error, or {@code null}.
+     */
+    public synchronized Throwable getError() {
+        return error;
+    }
+
+    /**
+     * Sets the loading error.
+     *
+     * @param error Loading error, or {@code null}.
+     */
+    public synchronized void setError(Throwable error) {
+        this.error = error;
+    }
+
+    /**
+     * Checks if the result has a loading error.
+     *
+     * @return {@code true} if {@link #getError()} is not {@code null}, {@code false} otherwise.
+     */
+    public synchronized boolean hasError() {
+        return error != null;
+    }
+
+    @Override
+    public synchronized boolean isReleased() {
+        return released;
+    }
+
+    @Override
+    public void release() {
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+            released = true;
+            error = null;
+        }
+        ResultLeakTracker.onReleased(this);
+        pool.recycle(this);
+    }
+
+    synchronized void reuse() {
+        released = false;
+        error = null;
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2016 TJORN LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobi.tjorn.content.common;
+
+import android.util.Log;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * An optional process-wide tracker that reports {@link Result}s that become unreachable
+ * while still in Not Released state.  Such a {@link Result} was dropped by a loader
+ * (typically because {@code onCanceled} or {@code deliverResult} was overridden incorrectly)
+ * and whatever it holds (cursors, native handles, etc.) was never freed.
+ * </p>
+ * <p>
+ * The tracker is disabled by default.  Enable it with {@link #enable(int, Reporter)},
+ * for example from {@code Application.onCreate()}.  Every {@code sampleRate}-th background load
+ * of a {@link TaskLoaderDelegate}, and every {@code sampleRate}-th {@link Result} handed to
+ * a {@link WorkerLoaderDelegate}, is tracked; stacks are captured only for tracked loads,
+ * so a large {@code sampleRate} keeps the overhead low in production.
+ * </p>
+ * <p>
+ * A {@link Result} that reports its creation with {@link #onCreated(Result)}, as the
+ * {@link Result}s of this library do, is reported with the stack that created it if it was
+ * created during a tracked {@link TaskLoaderDelegate} load.  Other {@link Result}s are reported
+ * with the stack where the loader received them.
+ * </p>
+ * <p>
+ * {@link Result}s released by the delegates are untracked right away.  A {@link Result} that
+ * can be released by other code must report it with {@link #onReleased(Result)} from its
+ * {@link Result#release()}, as the {@link Result}s of this library do; otherwise it is reported
+ * as a leak once it is collected.  Collected {@link Result}s are reported every time a new
+ * {@link Result} is tracked and on {@link #check()}.
+ * </p>
+ */
+public final class ResultLeakTracker {
+    private static final String TAG = "ResultLeakTracker";
+
+    private static volatile ResultLeakTracker instance;
+    // The background load running on the current thread, if any
+    private static final ThreadLocal<LoadScope> LOAD_SCOPE = new ThreadLocal<LoadScope>();
+
+    private final int sampleRate;
+    private final Reporter reporter;
+    private final AtomicLong counter = new AtomicLong();
+    private final ReferenceQueue<Result> queue = new ReferenceQueue<Result>();
+    // Entries by identity hash code of their Result
+    private final Map<Integer, List<Entry>> entries = new HashMap<Integer, List<Entry>>();
+    private final AtomicLong leakCount = new AtomicLong();
+
+    private ResultLeakTracker(int sampleRate, Reporter reporter) {
+        this.sampleRate = sampleRate;
+        this.reporter = reporter;
+    }
+
+    /**
+     * Enables leak tracking.
+     *
+     * @param sampleRate Tracks every {@code sampleRate}-th {@link Result}.  {@code 1} tracks
+     *                   every {@link Result}.
+     * @param reporter   Receives leak reports.  {@code null} logs leaks with {@link Log#w(String, String, Throwable)}.
+     */
+    public static void enable(int sampleRate, Reporter reporter) {
+        if (sampleRate < 1) {
+            throw new IllegalArgumentException("sampleRate must be positive: " + sampleRate);
+        }
+        instance = new ResultLeakTracker(sampleRate, reporter != null ? reporter : new LogReporter());
+    }
+
+    /**
+     * Disables leak tracking.  Pending entries are discarded without being reported.
+     */
+    public static void disable() {
+        instance = null;
+    }
+
+    /**
+     * Checks if leak tracking is enabled.
+     *
+     * @return {@code true} if {@link #enable(int, Reporter)} was called and
+     * {@link #disable()} was not called afterwards, {@code false} otherwise.
+     */
+    public static boolean isEnabled() {
+        return instance != null;
+    }
+
+    /**
+     * Reports all {@link Result}s that were collected since the last check while still in
+     * Not Released state.  Call {@link System#gc()} before this method to make tests deterministic.
+     */
+    public static void check() {
+        final ResultLeakTracker tracker = instance;
+        if (tracker != null) {
+            tracker.sweep();
+        }
+    }
+
+    /**
+     * Returns the number of leaks reported since the tracker was enabled.
+     *
+     * @return Number of reported leaks, or {@code 0} if the tracker is disabled.
+     */
+    public static long getLeakCount() {
+        final ResultLeakTracker tracker = instance;
+        return tracker != null ? tracker.leakCount.get() : 0;
+    }
+
+    // Called on the background thread before a TaskLoaderDelegate load runs
+    static void beginLoad() {
+        final ResultLeakTracker tracker = instance;
+        if (tracker != null) {
+            LOAD_SCOPE.set(new LoadScope(tracker.counter.getAndIncrement() % tracker.sampleRate == 0));
+        }
+    }
+
+    // Called on the background thread once the load returns
+    static void endLoad() {
+        LOAD_SCOPE.remove();
+    }
+
+    /**
+     * Records where a {@link Result} is created.  Call it from the constructors of {@link Result}s
+     * that are created in background loads, so leak reports show the code that created them.
+     * Does nothing unless a tracked load runs on the calling thread.
+     *
+     * @param result The new {@link Result}.
+     */
+    public static void onCreated(Result result) {
+        final LoadScope scope = LOAD_SCOPE.get();
+        if (scope != null && scope.creationSites != null) {
+            scope.creationSites.put(result, new Throwable("Result created here"));
+        }
+    }
+
+    static void track(Object loader, Result result) {
+        final ResultLeakTracker tracker = instance;
+        if (tracker == null || result.isReleased()) {
+            return;
+        }
+        final LoadScope scope = LOAD_SCOPE.get();
+        if (scope != null) {
+            // Sampled when the load began
+            if (scope.creationSites != null) {
+                final Throwable site = scope.creationSites.get(result);
+                tracker.add(loader, result, site != null ? site : new Throwable("Result delivered here"));
+            }
+        } else if (tracker.counter.getAndIncrement() % tracker.sampleRate == 0) {
+            tracker.add(loader, result, new Throwable("Result delivered here"));
+        }
+    }
+
+    static void untrack(Result result) {
+        onReleased(result);
+    }
+
+    /**
+     * Records that a {@link Result} was released.  Call it from {@link Result#release()}
+     * of {@link Result}s that can be released by code other than the loaders.
+     * Does nothing if the tracker is disabled or the {@link Result} is not tracked.
+     *
+     * @param result The released {@link Result}.
+     */
+    public static void onReleased(Result result) {
+        final ResultLeakTracker tracker = instance;
+        if (tracker != null) {
+            tracker.remove(result);
+        }
+    }
+
+    private void add(Object loader, Result result, Throwable site) {
+        final Entry entry = new Entry(result, queue, loader.getClass().getName(), site);
+        synchronized (entries) {
+            List<Entry> bucket = entries.get(entry.hash);
+            if (bucket == null) {
+                bucket = new ArrayList<Entry>(1);
+                entries.put(entry.hash, bucket);
+            }
+            bucket.add(entry);
+        }
+        sweep();
+    }
+
+    private void remove(Result result) {
+        final int hash = System.identityHashCode(result);
+        synchronized (entries) {
+            final List<Entry> bucket = entries.get(hash);
+            if (bucket == null) {
+                return;
+            }
+            for (Iterator<Entry> it = bucket.iterator(); it.hasNext(); ) {
+                if (it.next().get() == result) {
+                    it.remove();
+                    break;
+                }
+            }
+            if (bucket.isEmpty()) {
+                entries.remove(hash);
+            }
+        }
+    }
+
+    // Only looks at collected Results, so the cost does not grow with the number of tracked Results
+    private void sweep() {
+        final List<Entry> leaks = new ArrayList<Entry>();
+        synchronized (entries) {
+            Entry entry;
+            while ((entry = (Entry) queue.poll()) != null) {
+                final List<Entry> bucket = entries.get(entry.hash);
+                if (bucket != null && bucket.remove(entry)) {
+                    leaks.add(entry);
+                    if (bucket.isEmpty()) {
+                        entries.remove(entry.hash);
+                    }
+                }
+            }
+        }
+        for (Entry leak : leaks) {
+            leakCount.incrementAndGet();
+            reporter.onLeak(leak.loaderClassName, leak.allocationSite);
+        }
+    }
+
+    /**
+     * Receives leak reports.
+     */
+    public interface Reporter {
+        /**
+         * Called when a {@link Result} became unreachable while still in Not Released state.
+         * May be called on any thread.
+         *
+         * @param loaderClassName Class name of the loader that received the {@link Result}.
+         * @param allocationSite  Stack trace captured where the {@link Result} was created, or where
+         *                        the loader received it if the creation was not recorded.
+         */
+        void onLeak(String loaderClassName, Throwable allocationSite);
+    }
+
+    private static class LogReporter implements Reporter {
+        @Override
+        public void onLeak(String loaderClassName, Throwable allocationSite) {
+            Log.w(TAG, "A Result loaded by " + loaderClassName + " was never released.", allocationSite);
+        }
+    }
+
+    private static class Entry extends WeakReference<Result> {
+        private final int hash;
+        private final String loaderClassName;
+        private final Throwable allocationSite;
+
+        Entry(Result result, ReferenceQueue<Result> queue, String loaderClassName, Throwable allocationSite) {
+            super(result, queue);
+            this.hash = System.identityHashCode(result);
+            this.loaderClassName = loaderClassName;
+            this.allocationSite = allocationSite;
+        }
+    }
+
+    private static class LoadScope {
+        // Creation sites by Result, or null if the load is not tracked
+        private final Map<Result, Throwable> creationSites;
+
+        LoadScope(boolean tracked) {
+            this.creationSites = tracked ? new IdentityHashMap<Result, Throwable>() : null;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 TJORN LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobi.tjorn.content.common;
+
+import java.util.ArrayDeque;
+
+/**
+ * <p>
+ * A bounded pool of {@link RecyclableResult}s that share a payload type.  Loaders that refresh
+ * often obtain their {@link RecyclableResult} from the pool in their background load instead
+ * of allocating a new result and a new payload every cycle; released results, together with
+ * their payload buffers, go back to the pool.
+ * </p>
+ * <p>
+ * Keep one pool per payload type, typically in a static field of the loader.
+ * The class is thread safe.
+ * </p>
+ *
+ * @param <D> Payload.
+ */
+public class ResultPool<D> {
+    private final int maxSize;
+    private final PayloadFactory<D> factory;
+    private final ArrayDeque<RecyclableResult<D>> pool;
+    private int createdCount;
+    private int reusedCount;
+
+    /**
+     * Initializes new pool.
+     *
+     * @param maxSize Maximum number of released results to keep.  Results released
+     *                while the pool is full are left to the garbage collector.
+     * @param factory Creates and resets payloads.
+     */
+    public ResultPool(int maxSize, PayloadFactory<D> factory) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.factory = factory;
+        this.pool = new ArrayDeque<RecyclableResult<D>>(maxSize);
+    }
+
+    /**
+     * Returns a result in Not Released state, reusing a released result if there is one.
+     * Call it from the background load.
+     *
+     * @return A result whose payload was either just created or reset.
+     */
+    public RecyclableResult<D> obtain() {
+        RecyclableResult<D> result;
+        synchronized (this) {
+            result = pool.poll();
+            if (result != null) {
+                reusedCount++;
+            } else {
+                createdCount++;
+            }
+        }
+        if (result == null) {
+            result = new RecyclableResult<D>(this, factory.create());
+        }
+        result.reuse();
+        ResultLeakTracker.onCreated(result);
+        return result;
+    }
+
+    /**
+     * Returns the number of results allocated by the pool.
+     *
+     * @return Number of allocated results.
+     */
+    public synchronized int getCreatedCount() {
+        return createdCount;
+    }
+
+    /**
+     * Returns the number of times a released result was reused.
+     *
+     * @return Number of reused results.
+     */
+    public synchronized int getReusedCount() {
+        return reusedCount;
+    }
+
+    /**
+     * Returns the number of released results waiting to be reused.
+     *
+     * @return Pool size.
+     */
+    public synchronized int size() {
+        return pool.size();
+    }
+
+    void recycle(RecyclableResult<D> result) {
+        factory.reset(result.getData());
+        synchronized (this) {
+            if (pool.size() < maxSize) {
+                pool.push(result);
+            }
+        }
+    }
+
+    /**
+     * Creates and resets payloads.
+     *
+     * @param <D> Payload.
+     */
+    public interface PayloadFactory<D> {
+        /**
+         * Creates a payload, including buffers that will be reused by later loads.
+         *
+         * @return New payload.
+         */
+        D create();
+
+        /**
+         * Prepares a released payload for reuse.  Should drop references to other objects
+         * but keep the buffers.
+         *
+         * @param payload Payload of a released result.
+         */
+        void reset(D payload);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016 TJORN LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobi.tjorn.content.common;
+
+import android.os.Bundle;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes delivered data items to a saved instance state {@link Bundle} and reads them back
+ * after process death.  Small snapshots are stored in the {@link Bundle} as a compact byte
+ * array; snapshots over the size cap are written to a file and the {@link Bundle} only keeps
+ * the file path, so large data items never push the {@link Bundle} over the Binder
+ * transaction limit.  Snapshot files are written on a background thread, to a temporary file
+ * that is renamed once complete, so a snapshot lost to process death reads as no snapshot.
+ */
+final class ResultSnapshots {
+    private static final int FORMAT_VERSION = 1;
+    private static final ThreadPoolExecutor WRITER = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "ResultSnapshots");
+        }
+    });
+
+    static {
+        WRITER.allowCoreThreadTimeOut(true);
+    }
+
+    private ResultSnapshots() {
+    }
+
+    static <D> boolean save(D data, TaskLoaderDelegate.SnapshotCodec<D> codec, Bundle outState, String key,
+                            int maxInlineBytes, File fileDir) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(FORMAT_VERSION);
+            codec.write(data, out);
+            out.flush();
+            if (bytes.size() <= maxInlineBytes) {
+                outState.putByteArray(key, bytes.toByteArray());
+                return true;
+            }
+            if (fileDir == null || (!fileDir.isDirectory() && !fileDir.mkdirs())) {
+                return false;
+            }
+            // The escaped key keeps file names of different keys apart
+            final File file = new File(fileDir, URLEncoder.encode(key, "UTF-8") + ".snapshot");
+            WRITER.execute(new Runnable() {
+                @Override
+                public void run() {
+                    write(bytes, file);
+                }
+            });
+            outState.putString(key, file.getAbsolutePath());
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Called on the writer thread
+    private static void write(ByteArrayOutputStream bytes, File file) {
+        final File temp = new File(file.getPath() + ".tmp");
+        boolean written = false;
+        try {
+            final FileOutputStream fileOut = new FileOutputStream(temp);
+            try {
+                bytes.writeTo(fileOut);
+            } finally {
+                fileOut.close();
+            }
+            written = temp.renameTo(file);
+        } catch (IOException e) {
+            // The snapshot is restored as missing
+        } finally {
+            if (!written) {
+                temp.delete();
+            }
+        }
+    }
+
+    static <D> D restore(TaskLoaderDelegate.SnapshotCodec<D> codec, Bundle savedState, String key) {
+        if (savedState == null || !savedState.containsKey(key)) {
+            return null;
+        }
+        final byte[] inline = savedState.getByteArray(key);
+        File file = null;
+        InputStream in = null;
+        try {
+            if (inline != null) {
+                in = new ByteArrayInputStream(inline);
+            } else {
+                final String path = savedState.getString(key);
+                if (path == null) {
+                    return null;
+                }
+                file = new File(path);
+                in = new FileInputStream(file);
+            }
+            final DataInputStream dataIn = new DataInputStream(in);
+            if (dataIn.readByte() != FORMAT_VERSION) {
+                return null;
+            }
+            return codec.read(dataIn);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+            if (file != null) {
+                file.delete();
+            }
+            savedState.remove(key);
+        }
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright 2016 TJORN LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobi.tjorn.content.common;
+
+import android.os.Process;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * A {@link Result} whose payload lives in a memory-mapped segment file shared between
+ * the processes of an app.  One process (e.g., {@code :sync}) publishes load output to a named
+ * channel with {@link #publish(File, String, PayloadWriter)}; loaders in any process of the app
+ * map the latest segment of the channel read-only with {@link #open(File, String)}, so the
+ * payload is shared through the page cache instead of being re-loaded or copied through Binder.
+ * </p>
+ * <p>
+ * Segments are reference counted across processes: the channel holds a reference to its latest
+ * segment, and every opened {@link SharedSegmentResult} holds one until it is released.
+ * Reference counts change under a lock file of the directory, so a freed segment is never
+ * reopened or recreated.
+ * The segment file is deleted when the last reference is released; mapped pages are freed once
+ * the released buffers are garbage collected.  A process that dies without releasing its
+ * results leaks their references, and their segment files stay on disk.
+ * </p>
+ * <p>
+ * Use a directory that all processes of the app can see and the system does not clear,
+ * e.g. {@code new File(context.getFilesDir(), "segments")}.
+ * </p>
+ */
+public class SharedSegmentResult implements Result {
+    private static final int MAGIC = 0x534d5347;
+    private static final int HEADER_SIZE = 16;
+    private static final int REF_COUNT_OFFSET = 4;
+    private static final int LENGTH_OFFSET = 8;
+    private static final int MAX_OPEN_ATTEMPTS = 8;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String POINTER_SUFFIX = ".ptr";
+    private static final String LOCK_SUFFIX = ".lock";
+    private static final String REFS_LOCK = "refs" + LOCK_SUFFIX;
+    // FileLock is held on behalf of the whole process, so threads of this process take turns
+    private static final Object PROCESS_LOCK = new Object();
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private final File file;
+    private final Throwable error;
+    private ByteBuffer buffer;
+    private boolean released;
+
+    SharedSegmentResult(File file, ByteBuffer buffer) {
+        this.file = file;
+        this.buffer = buffer;
+        this.error = null;
+        ResultLeakTracker.onCreated(this);
+    }
+
+    /**
+     * Initializes new result with an error.
+     *
+     * @param error Loading error.
+     */
+    public SharedSegmentResult(Throwable error) {
+        this.file = null;
+        this.buffer = null;
+        this.error = error;
+        ResultLeakTracker.onCreated(this);
+    }
+
+    /**
+     * Writes a payload to a new segment and makes it the latest segment of a channel.
+     * The previous segment is freed once its last reader releases it.
+     * Must be called on a background thread.
+     *
+     * @param dir     Directory shared by the processes of the app.
+     * @param channel Channel name; a valid file name.
+     * @param writer  Writes the payload.
+     * @throws IOException If the segment cannot be written.
+     */
+    public static void publish(File dir, String channel, PayloadWriter writer) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        final String name = channel + "." + Process.myPid() + "." + SEQUENCE.incrementAndGet()
+                + "." + System.currentTimeMillis() + SEGMENT_SUFFIX;
+        final File segment = new File(dir, name);
+        final String previous;
+        boolean published = false;
+        try {
+            final FileOutputStream fileOut = new FileOutputStream(segment);
+            try {
+                final FileChannel channelOut = fileOut.getChannel();
+                channelOut.write(header(1, 0));
+                final OutputStream out = new BufferedOutputStream(fileOut);
+                writer.write(out);
+                out.flush();
+                final long length = channelOut.position() - HEADER_SIZE;
+                if (length > Integer.MAX_VALUE) {
+                    throw new IOException("Payload too large: " + length);
+                }
+                channelOut.write(header(1, (int) length), 0);
+            } finally {
+                fileOut.close();
+            }
+            synchronized (PROCESS_LOCK) {
+                final FileOutputStream lockOut = new FileOutputStream(new File(dir, channel + LOCK_SUFFIX));
+                try {
+                    final FileLock lock = lockOut.getChannel().lock();
+                    try {
+                        previous = readPointer(dir, channel);
+                        writePointer(dir, channel, name);
+                    } finally {
+                        lock.release();
+                    }
+                } finally {
+                    lockOut.close();
+                }
+            }
+            published = true;
+        } finally {
+            // Nobody can see a segment the pointer does not name yet
+            if (!published) {
+                segment.delete();
+            }
+        }
+        if (previous != null) {
+            unref(new File(dir, previous));
+        }
+    }
+
+    /**
+     * Maps the latest segment of a channel read-only.
+     * Must be called on a background thread.
+     *
+     * @param dir     Directory shared by the processes of the app.
+     * @param channel Channel name.
+     * @return A result in Not Released state, or {@code null} if nothing was published to the channel.
+     * @throws IOException If the segment cannot be mapped.
+     */
+    public static SharedSegmentResult open(File dir, String channel) throws IOException {
+        for (int attempt = 0; attempt < MAX_OPEN_ATTEMPTS; attempt++) {
+            final String name = readPointer(dir, channel);
+            if (name == null) {
+                return null;
+            }
+            final File segment = new File(dir, name);
+            final SharedSegmentResult result = map(segment);
+            if (result != null) {
+                return result;
+            }
+            // The segment was superseded and freed between reading the pointer and mapping it
+        }
+        throw new IOException("Channel " + channel + " changes too fast to open");
+    }
+
+    /**
+     * Returns the loading error.
+     *
+     * @return Loading error, or {@code null}.
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * Checks if the result has a loading error.
+     *
+     * @return {@code true} if {@link #getError()} is not {@code null}, {@code false} otherwise.
+     */
+    public boolean hasError() {
+        return error != null;
+    }
+
+    /**
+     * Returns the payload.  The buffer is read-only and backed by the shared segment;
+     * it must not be used after the result is released.
+     *
+     * @return A read-only buffer positioned at the start of the payload, or {@code null}
+     * if the result has an error or is released.
+     */
+    public synchronized ByteBuffer getBuffer() {
+        return buffer != null ? buffer.duplicate() : null;
+    }
+
+    @Override
+    public synchronized boolean isReleased() {
+        return file == null || released;
+    }
+
+    /**
+     * Drops this result's reference to the segment.  Performs a small file operation,
+     * which is acceptable on the main thread.
+     */
+    @Override
+    public void release() {
+        synchronized (this) {
+            if (file == null || released) {
+                return;
+            }
+            released = true;
+            buffer = null;
+        }
+        ResultLeakTracker.onReleased(this);
+        try {
+            unref(file);
+        } catch (IOException e) {
+            // The segment leaks until it is deleted with the directory
+        }
+    }
+
+    private static SharedSegmentResult map(File segment) throws IOException {
+        synchronized (PROCESS_LOCK) {
+            final FileOutputStream lockOut = new FileOutputStream(new File(segment.getParentFile(), REFS_LOCK));
+            try {
+                final FileLock lock = lockOut.getChannel().lock();
+                try {
+                    return mapLocked(segment);
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                lockOut.close();
+            }
+        }
+    }
+
+    // Called with the reference lock held, so segments are neither deleted nor recreated meanwhile
+    private static SharedSegmentResult mapLocked(File segment) throws IOException {
+        if (!segment.isFile()) {
+            return null;
+        }
+        final RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            final FileChannel channel = file.getChannel();
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (channel.size() < HEADER_SIZE || channel.read(header, 0) < HEADER_SIZE
+                    || header.getInt(0) != MAGIC || header.getInt(REF_COUNT_OFFSET) <= 0) {
+                // Left behind by a process that died while it freed the segment
+                segment.delete();
+                return null;
+            }
+            final int refCount = header.getInt(REF_COUNT_OFFSET);
+            final int length = header.getInt(LENGTH_OFFSET);
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, length);
+            channel.write(header(refCount + 1, length), 0);
+            return new SharedSegmentResult(segment, buffer);
+        } finally {
+            // The mapping stays valid after the file is closed
+            file.close();
+        }
+    }
+
+    private static void unref(File segment) throws IOException {
+        synchronized (PROCESS_LOCK) {
+            final FileOutputStream lockOut = new FileOutputStream(new File(segment.getParentFile(), REFS_LOCK));
+            try {
+                final FileLock lock = lockOut.getChannel().lock();
+                try {
+                    unrefLocked(segment);
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                lockOut.close();
+            }
+        }
+    }
+
+    // Called with the reference lock held
+    private static void unrefLocked(File segment) throws IOException {
+        if (!segment.isFile()) {
+            return;
+        }
+        final RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        final int refCount;
+        try {
+            final FileChannel channel = file.getChannel();
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (channel.read(header, 0) < HEADER_SIZE) {
+                refCount = 0;
+            } else {
+                refCount = header.getInt(REF_COUNT_OFFSET) - 1;
+                channel.write(header(refCount, header.getInt(LENGTH_OFFSET)), 0);
+            }
+        } finally {
+            file.close();
+        }
+        if (refCount <= 0) {
+            // Existing mappings of a deleted file stay valid
+            segment.delete();
+        }
+    }
+
+    private static ByteBuffer header(int refCount, int length) {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(0, MAGIC);
+        header.putInt(REF_COUNT_OFFSET, refCount);
+        header.putInt(LENGTH_OFFSET, length);
+        return header;
+    }
+
+    private static String readPointer(File dir, String channel) throws IOException {
+        final Reader reader;
+        try {
+            reader = new InputStreamReader(new FileInputStream(new File(dir, channel + POINTER_SUFFIX)), "UTF-8");
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            final StringBuilder name = new StringBuilder();
+            final char[] chars = new char[128];
+            int count;
+            while ((count = reader.read(chars)) != -1) {
+                name.append(chars, 0, count);
+            }
+            return name.length() > 0 ? name.toString() : null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    // Called with the channel lock held
+    private static void writePointer(File dir, String channel, String name) throws IOException {
+        final File temp = new File(dir, channel + POINTER_SUFFIX + ".tmp");
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+        try {
+            writer.write(name);
+        } finally {
+            writer.close();
+        }
+        // Readers see either the previous pointer or the new one
+        if (!temp.renameTo(new File(dir, channel + POINTER_SUFFIX))) {
+            temp.delete();
+            throw new IOException("Cannot update " + channel + POINTER_SUFFIX);
+        }
+    }
+
+    /**
+     * Writes a payload to a segment.
+     */
+    public interface PayloadWriter {
+        /**
+         * Called on the publishing thread.
+         *
+         * @param out Stream into the segment.  Do not close it.
+         * @throws IOException If the payload cannot be written.
+         */
+        void write(OutputStream out) throws IOException;
+    }
+}
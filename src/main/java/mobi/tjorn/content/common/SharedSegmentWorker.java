@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 TJORN LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobi.tjorn.content.common;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+/**
+ * <p>
+ * A {@link WorkerLoaderDelegate.Worker} that delivers the latest segment of a
+ * {@link SharedSegmentResult} channel.
+ * </p>
+ * <ul>
+ * <li>Created with {@link #SharedSegmentWorker(File, String, Executor)}, the worker only maps
+ * the segment another process published.  Loaders in the UI process use it instead of loading
+ * the data again.</li>
+ * <li>Created with {@link #SharedSegmentWorker(File, String, Executor, SharedSegmentResult.PayloadWriter)},
+ * the worker loads the payload, publishes it to the channel and delivers the mapped segment.
+ * Loaders in the process that owns the data (e.g., {@code :sync}) use it.</li>
+ * </ul>
+ * <p>
+ * The loader is not notified when another process publishes a segment: forward that signal
+ * (e.g., a {@code ContentResolver.notifyChange()} call) to the loader's {@code onContentChanged()}.
+ * </p>
+ */
+public class SharedSegmentWorker implements WorkerLoaderDelegate.Worker<SharedSegmentResult> {
+    private final File dir;
+    private final String channel;
+    private final Executor executor;
+    private final SharedSegmentResult.PayloadWriter writer;
+    private Task task;
+
+    /**
+     * Initializes new worker that maps the segments another process publishes.
+     *
+     * @param dir      Directory shared by the processes of the app.
+     * @param channel  Channel name.
+     * @param executor Executor that maps segments.
+     */
+    public SharedSegmentWorker(File dir, String channel, Executor executor) {
+        this(dir, channel, executor, null);
+    }
+
+    /**
+     * Initializes new worker that publishes segments.
+     *
+     * @param dir      Directory shared by the processes of the app.
+     * @param channel  Channel name.
+     * @param executor Executor that loads, publishes and maps segments.
+     * @param writer   Loads the payload and writes it to the segment.
+     */
+    public SharedSegmentWorker(File dir, String channel, Executor executor,
+                               SharedSegmentResult.PayloadWriter writer) {
+        this.dir = dir;
+        this.channel = channel;
+        this.executor = executor;
+        this.writer = writer;
+    }
+
+    @Override
+    public void start(WorkerLoaderDelegate.ResultListener<SharedSegmentResult> listener) {
+        task = new Task(listener);
+        executor.execute(task);
+    }
+
+    /**
+     * Skips the load if it has not started yet.  A load that has started runs to completion,
+     * and its result is released by the loader.
+     */
+    @Override
+    public void cancel() {
+        if (task != null) {
+            task.canceled = true;
+            task = null;
+        }
+    }
+
+    private class Task implements Runnable {
+        private final WorkerLoaderDelegate.ResultListener<SharedSegmentResult> listener;
+        private volatile boolean canceled;
+
+        Task(WorkerLoaderDelegate.ResultListener<SharedSegmentResult> listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            if (canceled) {
+                return;
+            }
+            SharedSegmentResult result;
+            Error thrown = null;
+            try {
+                if (writer != null) {
+                    SharedSegmentResult.publish(dir, channel, writer);
+                }
+                result = SharedSegmentResult.open(dir, channel);
+                if (result == null) {
+                    result = new SharedSegmentResult(new FileNotFoundException("Nothing published to " + channel));
+                }
+            } catch (IOException e) {
+                result = new SharedSegmentResult(e);
+            } catch (RuntimeException e) {
+                result = new SharedSegmentResult(e);
+            } catch (Error e) {
+                // Complete the load before reporting the Error
+                result = new SharedSegmentResult(e);
+                thrown = e;
+            }
+            listener.onResult(result);
+            if (thrown != null) {
+                throw thrown;
+            }
+        }
+    }
+}
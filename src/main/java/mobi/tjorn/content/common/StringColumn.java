@@ -0,0 +1,180 @@
+/*
+ * Copyright 2016 TJORN LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobi.tjorn.content.common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A dictionary-encoded {@link Column} of {@link String} values.  Each distinct value is stored
+ * once in the dictionary, and rows hold {@code int} codes into the dictionary, so columns with
+ * few distinct values (e.g., categories or units) take about four bytes per row.
+ */
+public final class StringColumn extends Column {
+    private static final int NULL_CODE = -1;
+
+    private final String[] dictionary;
+    private int[] codes;
+
+    StringColumn(String name, String[] dictionary, int[] codes, int offset, int size, ArrayPool pool, Column owner) {
+        super(name, offset, size, pool, owner);
+        this.dictionary = dictionary;
+        this.codes = codes;
+    }
+
+    /**
+     * Returns a value.
+     *
+     * @param row Row index.
+     * @return Value at the row, may be {@code null}.
+     */
+    public String get(int row) {
+        final int code = codes[index(row)];
+        return code == NULL_CODE ? null : dictionary[code];
+    }
+
+    /**
+     * Returns the dictionary code of a value.  Rows with equal values have equal codes,
+     * so codes can be compared instead of strings.
+     *
+     * @param row Row index.
+     * @return Dictionary code, or {@code -1} for {@code null}.
+     */
+    public int getCode(int row) {
+        return codes[index(row)];
+    }
+
+    /**
+     * Returns the number of distinct non-{@code null} values.
+     *
+     * @return Dictionary size.
+     */
+    public int getDictionarySize() {
+        return dictionary.length;
+    }
+
+    /**
+     * Returns the value of a dictionary code.
+     *
+     * @param code Dictionary code returned by {@link #getCode(int)}.
+     * @return Value, or {@code null} for {@code -1}.
+     */
+    public String decode(int code) {
+        return code == NULL_CODE ? null : dictionary[code];
+    }
+
+    @Override
+    public StringColumn slice(int from, int to) {
+        checkSlice(from, to);
+        return new StringColumn(getName(), dictionary, codes, offset + from, to - from, null, getOwner());
+    }
+
+    @Override
+    void recycle(ArrayPool pool) {
+        pool.recycle(codes);
+        codes = null;
+    }
+
+    /**
+     * Builds a {@link StringColumn} on a background thread.  A builder builds a single column.
+     */
+    public static final class Builder {
+        private final String name;
+        private final ArrayPool pool;
+        private final Map<String, Integer> index = new HashMap<String, Integer>();
+        private final List<String> dictionary = new ArrayList<String>();
+        private int[] codes;
+        private int size;
+
+        /**
+         * Initializes new builder that uses {@link ArrayPool#getDefault()}.
+         *
+         * @param name Column name.
+         */
+        public Builder(String name) {
+            this(name, ArrayPool.getDefault());
+        }
+
+        /**
+         * Initializes new builder.
+         *
+         * @param name Column name.
+         * @param pool Pool to obtain arrays from and to return them to on release.
+         */
+        public Builder(String name, ArrayPool pool) {
+            this.name = name;
+            this.pool = pool;
+            this.codes = pool.obtainInts(INITIAL_CAPACITY);
+        }
+
+        /**
+         * Appends a value.
+         *
+         * @param value Value to append, may be {@code null}.
+         * @return This builder.
+         */
+        public Builder add(String value) {
+            if (size == codes.length) {
+                final int[] grown = pool.obtainInts(size + 1);
+                System.arraycopy(codes, 0, grown, 0, size);
+                pool.recycle(codes);
+                codes = grown;
+            }
+            codes[size++] = encode(value);
+            return this;
+        }
+
+        /**
+         * Returns the number of values added so far.
+         *
+         * @return Number of values.
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Builds the column.  The column takes over the builder's code array without copying it.
+         *
+         * @return A column in Not Released state.
+         */
+        public StringColumn build() {
+            if (codes == null) {
+                throw new IllegalStateException("Column already built");
+            }
+            final StringColumn column = new StringColumn(name, dictionary.toArray(new String[dictionary.size()]),
+                    codes, 0, size, pool, null);
+            codes = null;
+            return column;
+        }
+
+        private int encode(String value) {
+            if (value == null) {
+                return NULL_CODE;
+            }
+            Integer code = index.get(value);
+            if (code == null) {
+                code = dictionary.size();
+                dictionary.add(value);
+                index.put(value, code);
+            }
+            return code;
+        }
+    }
+}
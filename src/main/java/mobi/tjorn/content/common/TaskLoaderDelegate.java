@@ -16,6 +16,22 @@
 
 package mobi.tjorn.content.common;
 
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * A class that implements common task loader methods that do not depend
  * on how data are loaded.
@@ -23,14 +39,458 @@ package mobi.tjorn.content.common;
 public class TaskLoaderDelegate<D, LM extends TaskLoaderDelegate.TaskLoaderMethods<D>> {
     protected final LM loader;
     protected D result;
+    private final Map<D, Object> fingerprints = new IdentityHashMap<D, Object>();
+    private final List<LoaderDependency<D>> dependencies = new CopyOnWriteArrayList<LoaderDependency<D>>();
+    private final List<LoaderDependency<?>> upstreams = new CopyOnWriteArrayList<LoaderDependency<?>>();
+    private volatile boolean backgroundLoadCanceled;
+    private volatile ContentEquivalence<D> equivalence;
+    private Object resultFingerprint;
+    private int suppressedDeliveryCount;
+    private final Object changeLock = new Object();
+    private int maxChanges;
+    private List<Object> pendingChanges = new ArrayList<Object>();
+    private boolean pendingFullReload;
+    private List<Object> inFlightChanges;
+    private boolean inFlightFullReload;
+    private D changeBase;
+    private D heldChangeBase;
+    private boolean changeBaseReleaseDeferred;
+    private boolean redelivering;
+    protected volatile AdaptiveLimiter limiter;
+    protected volatile int loadPriority;
+    private volatile AdaptiveLimiter.Ticket loadTicket;
+    private AdaptiveLimiter.Ticket queuedLoad;
+    private final AtomicReference<AdaptiveLimiter.Ticket> grantedLoad = new AtomicReference<AdaptiveLimiter.Ticket>();
+    private boolean startingLoad;
+    private volatile AdaptiveLimiter.Ticket heldSlot;
+    private volatile Thread loadThread;
+    private Handler mainHandler;
+    private SnapshotCodec<D> snapshotCodec;
+    private int maxInlineSnapshotBytes;
 
     public TaskLoaderDelegate(LM loader) {
         this.loader = loader;
     }
 
+    /**
+     * Enables or disables suppression of redundant deliveries.  When enabled, a newly
+     * loaded data item whose fingerprint equals the fingerprint of the current {@link #result}
+     * is released and not delivered; the current {@link #result} stays delivered.
+     * There is no default equivalence: pass an explicit fingerprint function.
+     * Must be called from the process's main thread.
+     *
+     * @param equivalence Computes data fingerprints, or {@code null} to deliver every data item.
+     * @see #dataEquivalence()
+     * @see #equalsEquivalence()
+     */
+    public void setContentEquivalence(ContentEquivalence<D> equivalence) {
+        this.equivalence = equivalence;
+        synchronized (fingerprints) {
+            fingerprints.clear();
+        }
+        resultFingerprint = result != null && equivalence != null ? equivalence.fingerprint(result) : null;
+    }
+
+    /**
+     * Returns the number of deliveries suppressed because the new data item was equivalent
+     * to the current {@link #result}.
+     *
+     * @return Number of suppressed deliveries.
+     */
+    public int getSuppressedDeliveryCount() {
+        return suppressedDeliveryCount;
+    }
+
+    /**
+     * Registers a loader that depends on this loader's data.
+     * Must be called from the process's main thread.
+     *
+     * @param dependent Delegate of the dependent loader.
+     * @return A {@link LoaderDependency} the dependent loader awaits the data with.
+     */
+    public LoaderDependency<D> addDependent(TaskLoaderDelegate<?, ?> dependent) {
+        final LoaderDependency<D> dependency = new LoaderDependency<D>(this, dependent, result);
+        dependencies.add(dependency);
+        dependent.upstreams.add(dependency);
+        return dependency;
+    }
+
+    // Called when the dependent loader is reset
+    void removeDependency(LoaderDependency<D> dependency) {
+        dependencies.remove(dependency);
+    }
+
+    // Called on the main thread when the dependent loader starts after a reset
+    void attachDependency(LoaderDependency<D> dependency) {
+        if (!dependencies.contains(dependency)) {
+            dependencies.add(dependency);
+        }
+        dependency.onDelivered(result);
+    }
+
+    /**
+     * Must be called on the background thread before the data is loaded.
+     */
+    public void onBackgroundLoadStarted() {
+        backgroundLoadCanceled = false;
+        loadThread = Thread.currentThread();
+        ResultLeakTracker.beginLoad();
+    }
+
+    /**
+     * Must be called on the background thread once the data is loaded, even if the load failed.
+     * Upstream data items the load consumed through {@link LoaderDependency#await()} are released
+     * if their loaders have replaced them in the meantime, and so is the previous data item
+     * handed to the load by {@link #takeChanges()}.
+     */
+    public void onBackgroundLoadFinished() {
+        loadThread = null;
+        for (LoaderDependency<?> dependency : upstreams) {
+            dependency.endHold();
+        }
+        endChangeBaseHold();
+        ResultLeakTracker.endLoad();
+    }
+
+    /**
+     * Must be called when the load is canceled.  Withdraws a load queued by
+     * {@link #enqueueLoad(Runnable)} and wakes up the background load if it waits
+     * in {@link LoaderDependency#await()}.
+     */
+    public void onBackgroundLoadCanceled() {
+        if (!startingLoad) {
+            cancelQueuedLoad();
+        }
+        backgroundLoadCanceled = true;
+        for (LoaderDependency<?> dependency : upstreams) {
+            dependency.wakeUp();
+        }
+    }
+
+    /**
+     * Returns whether the current background load was canceled.
+     *
+     * @return {@code true} if the load was canceled, {@code false} otherwise.
+     */
+    public boolean isBackgroundLoadCanceled() {
+        return backgroundLoadCanceled;
+    }
+
+    /**
+     * Enables or disables incremental reloads.  When enabled, change descriptors reported with
+     * {@link #recordChange(Object)} accumulate until the next background load takes them with
+     * {@link #takeChanges()}.  Must be called from the process's main thread.
+     *
+     * @param maxChanges Maximum number of change descriptors to keep; more changes fall back
+     *                   to a full reload.  {@code 0} disables incremental reloads.
+     */
+    public void setIncrementalReloads(int maxChanges) {
+        synchronized (changeLock) {
+            this.maxChanges = maxChanges;
+            changeBase = result;
+            pendingChanges.clear();
+            pendingFullReload = false;
+        }
+    }
+
+    /**
+     * Records a content change.  Must be called from the process's main thread, before the
+     * loader is notified about the change.
+     *
+     * @param change Change descriptor (e.g., the {@code Uri} of a changed row), or {@code null}
+     *               if the change is not known and the data item has to be rebuilt.
+     */
+    public void recordChange(Object change) {
+        synchronized (changeLock) {
+            if (maxChanges == 0) {
+                return;
+            }
+            if (change == null || pendingChanges.size() >= maxChanges) {
+                pendingFullReload = true;
+                pendingChanges.clear();
+            } else if (!pendingFullReload) {
+                pendingChanges.add(change);
+            }
+        }
+    }
+
+    /**
+     * Takes the changes recorded since the previous load.  Must be called on the background
+     * thread, at most once per load.  The changes are put back if the load is canceled.
+     * The previously delivered data item is not released before the load calls
+     * {@link #onBackgroundLoadFinished()}, even if the loader replaces it or is reset meanwhile.
+     *
+     * @return Accumulated changes and the previously delivered data item.
+     */
+    public ChangeSet<D> takeChanges() {
+        synchronized (changeLock) {
+            heldChangeBase = changeBase;
+            inFlightChanges = pendingChanges;
+            inFlightFullReload = pendingFullReload || pendingChanges.isEmpty() || changeBase == null;
+            pendingChanges = new ArrayList<Object>();
+            pendingFullReload = false;
+            return new ChangeSet<D>(changeBase, inFlightFullReload ? Collections.emptyList() : inFlightChanges,
+                    inFlightFullReload);
+        }
+    }
+
+    /**
+     * Puts an {@link AdaptiveLimiter} in front of this loader's loads.
+     * Must be called from the process's main thread.
+     *
+     * A {@link LoadScheduler} may also preempt this loader's loads in favor of loads
+     * with a higher priority.
+     *
+     * @param limiter  A limiter shared with other loaders, or {@code null} to run loads without a limit.
+     * @param priority Priority of this loader's loads in the limiter queue.
+     */
+    public void setConcurrencyLimiter(AdaptiveLimiter limiter, int priority) {
+        this.limiter = limiter;
+        this.loadPriority = priority;
+    }
+
+    /**
+     * Changes the priority of this loader's loads, including a load that is already queued.
+     * Typically called when the loader's data moves on or off screen.
+     *
+     * @param priority Priority of this loader's loads in the limiter queue.
+     */
+    public void setLoadPriority(int priority) {
+        this.loadPriority = priority;
+        final AdaptiveLimiter limiter = this.limiter;
+        final AdaptiveLimiter.Ticket ticket = getLoadTicket();
+        if (limiter != null && ticket != null) {
+            limiter.setPriority(ticket, priority);
+        }
+    }
+
+    // Called on a dependent loader's background thread
+    void inheritPriority(int priority) {
+        final AdaptiveLimiter limiter = this.limiter;
+        final AdaptiveLimiter.Ticket ticket = getLoadTicket();
+        if (limiter != null && ticket != null && ticket.getPriority() < priority) {
+            limiter.setPriority(ticket, priority);
+        }
+    }
+
+    /**
+     * Returns the limiter ticket of the current load.
+     *
+     * @return Ticket of the current load, or {@code null} if no load holds or waits for a slot.
+     */
+    protected AdaptiveLimiter.Ticket getLoadTicket() {
+        return loadTicket;
+    }
+
+    /**
+     * Runs a task on the process's main thread.
+     *
+     * @param task Task to run.
+     */
+    protected void postToMainThread(Runnable task) {
+        synchronized (this) {
+            if (mainHandler == null) {
+                mainHandler = new Handler(Looper.getMainLooper());
+            }
+        }
+        mainHandler.post(task);
+    }
+
+    /**
+     * Queues a forced load in the {@link AdaptiveLimiter}, if any, so that the load waits
+     * for a slot before it takes a background thread.  The running load, if any, is canceled
+     * right away.  Must be called from {@code onForceLoad()} on the process's main thread.
+     *
+     * @param start Starts the load on the main thread once a slot is granted.
+     * @return {@code true} if the load was queued, {@code false} if it should start right away.
+     */
+    public boolean enqueueLoad(final Runnable start) {
+        final AdaptiveLimiter limiter = this.limiter;
+        if (limiter == null || startingLoad) {
+            return false;
+        }
+        loader.cancelLoadCompat();
+        final Preemption preemption = new Preemption();
+        final QueuedLoad grant = new QueuedLoad(start);
+        final AdaptiveLimiter.Ticket ticket = limiter.enqueue(loadPriority, grant, preemption);
+        grant.ticket = ticket;
+        preemption.ticket = ticket;
+        queuedLoad = ticket;
+        loadTicket = ticket;
+        return true;
+    }
+
+    // Called on the main thread
+    private void cancelQueuedLoad() {
+        final AdaptiveLimiter limiter = this.limiter;
+        final AdaptiveLimiter.Ticket queued = queuedLoad;
+        queuedLoad = null;
+        final AdaptiveLimiter.Ticket granted = grantedLoad.getAndSet(null);
+        if (limiter != null) {
+            if (queued != null) {
+                limiter.cancel(queued);
+            }
+            if (granted != null) {
+                limiter.cancel(granted);
+            }
+        }
+        if (loadTicket == queued || loadTicket == granted) {
+            loadTicket = null;
+        }
+    }
+
+    /**
+     * Waits for a slot in the {@link AdaptiveLimiter}, if any.  Must be called on the background
+     * thread, right before the data is loaded.  A load queued by {@link #enqueueLoad(Runnable)}
+     * already holds its slot.  If the thread is interrupted while waiting,
+     * the load proceeds without a slot and the interrupt is preserved.
+     *
+     * @return A ticket to pass to {@link #releaseLoadSlot(AdaptiveLimiter.Ticket)}, or {@code null}.
+     */
+    public AdaptiveLimiter.Ticket acquireLoadSlot() {
+        final AdaptiveLimiter limiter = this.limiter;
+        if (limiter == null) {
+            return null;
+        }
+        final AdaptiveLimiter.Ticket granted = grantedLoad.getAndSet(null);
+        if (granted != null) {
+            heldSlot = granted;
+            return granted;
+        }
+        heldSlot = awaitLoadSlot(limiter, loadPriority);
+        return heldSlot;
+    }
+
+    private AdaptiveLimiter.Ticket awaitLoadSlot(AdaptiveLimiter limiter, int priority) {
+        final Preemption preemption = new Preemption();
+        final AdaptiveLimiter.Ticket ticket = limiter.enqueue(priority, null, preemption);
+        preemption.ticket = ticket;
+        loadTicket = ticket;
+        try {
+            return limiter.awaitGrant(ticket);
+        } catch (InterruptedException e) {
+            loadTicket = null;
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    // Called on a dependent loader's background thread before it waits for an upstream loader
+    AdaptiveLimiter.Ticket suspendLoadSlot() {
+        final AdaptiveLimiter limiter = this.limiter;
+        final AdaptiveLimiter.Ticket held = heldSlot;
+        if (limiter == null || held == null || Thread.currentThread() != loadThread) {
+            return null;
+        }
+        // Frees the slot for the upstream load, without affecting the limit
+        heldSlot = null;
+        limiter.cancel(held);
+        if (loadTicket == held) {
+            loadTicket = null;
+        }
+        return held;
+    }
+
+    // Called on a dependent loader's background thread once the upstream data item is available
+    void resumeLoadSlot(AdaptiveLimiter.Ticket suspended) {
+        final AdaptiveLimiter limiter = this.limiter;
+        if (suspended == null || limiter == null || backgroundLoadCanceled) {
+            return;
+        }
+        heldSlot = awaitLoadSlot(limiter, suspended.getPriority());
+    }
+
+    /**
+     * Frees a slot acquired by {@link #acquireLoadSlot()} once the data is loaded.
+     *
+     * @param ticket Ticket returned by {@link #acquireLoadSlot()}, may be {@code null}.
+     */
+    public void releaseLoadSlot(AdaptiveLimiter.Ticket ticket) {
+        final AdaptiveLimiter limiter = this.limiter;
+        // The load may hold another slot if it waited for an upstream loader
+        final AdaptiveLimiter.Ticket held = heldSlot != null ? heldSlot : ticket;
+        heldSlot = null;
+        if (held != null && limiter != null) {
+            limiter.release(held);
+        }
+        if (held != null && loadTicket == held) {
+            loadTicket = null;
+        }
+    }
+
+    /**
+     * Enables or disables snapshots of the delivered data item across process death.
+     * Must be called from the process's main thread.
+     *
+     * @param codec          Writes and reads data items, or {@code null} to disable snapshots.
+     * @param maxInlineBytes Snapshots up to this size are kept in the saved instance state;
+     *                       larger snapshots are written to a file.
+     */
+    public void setSnapshotCodec(SnapshotCodec<D> codec, int maxInlineBytes) {
+        this.snapshotCodec = codec;
+        this.maxInlineSnapshotBytes = maxInlineBytes;
+    }
+
+    /**
+     * Saves a snapshot of the delivered data item.  Call it from {@code onSaveInstanceState}.
+     * The data item is encoded right away; a snapshot over the inline size cap is written
+     * to its file on a background thread.
+     *
+     * @param outState Saved instance state.
+     * @param key      Key unique to this loader within {@code outState}.
+     * @param fileDir  Directory for snapshots over the inline size cap.
+     * @return {@code true} if a snapshot was saved, {@code false} if snapshots are disabled,
+     * there is nothing to save, or the data item could not be written.
+     */
+    public boolean saveSnapshot(Bundle outState, String key, File fileDir) {
+        if (snapshotCodec == null || result == null) {
+            return false;
+        }
+        return ResultSnapshots.save(result, snapshotCodec, outState, key, maxInlineSnapshotBytes, fileDir);
+    }
+
+    /**
+     * Restores a snapshot saved by {@link #saveSnapshot(Bundle, String, File)}.  The snapshot
+     * becomes the current {@link #result}, is delivered right away (or on start, if the loader
+     * is not started yet), and a background refresh is requested.  A started loader without
+     * a result has already started its load, so that load is kept as the refresh.
+     * Must be called from the process's main thread, before the loader has a result of its own.
+     *
+     * @param savedState Saved instance state, may be {@code null}.
+     * @param key        The key the snapshot was saved with.
+     * @return {@code true} if a snapshot was restored, {@code false} otherwise.
+     */
+    public boolean restoreSnapshot(Bundle savedState, String key) {
+        if (snapshotCodec == null || result != null || savedState == null) {
+            return false;
+        }
+        final D snapshot = ResultSnapshots.restore(snapshotCodec, savedState, key);
+        if (snapshot == null) {
+            return false;
+        }
+        result = snapshot;
+        if (loader.isStarted()) {
+            loader.superDeliverResult(snapshot);
+        }
+        notifyDependents();
+        if (!loader.isStarted()) {
+            // onStartLoading() delivers the snapshot and then reloads
+            loader.onContentChanged();
+        }
+        return true;
+    }
+
     public void onStartLoading() {
+        for (LoaderDependency<?> dependency : upstreams) {
+            dependency.attach();
+        }
         if (result != null) {
-            loader.deliverResult(result);
+            redelivering = true;
+            try {
+                loader.deliverResult(result);
+            } finally {
+                redelivering = false;
+            }
         }
         if (loader.takeContentChanged() || result == null) {
             loader.forceLoad();
@@ -41,39 +501,338 @@ public class TaskLoaderDelegate<D, LM extends TaskLoaderDelegate.TaskLoaderMetho
         loader.cancelLoadCompat();
     }
 
+    /**
+     * Called on a background thread with the data that was just loaded,
+     * before the data is passed to {@link #deliverResult(Object)} or {@link #onCanceled(Object)}.
+     *
+     * @param data Loaded data item.
+     */
+    public void onLoadedInBackground(D data) {
+        if (data instanceof Result && ResultLeakTracker.isEnabled()) {
+            ResultLeakTracker.track(loader, (Result) data);
+        }
+        final ContentEquivalence<D> equivalence = this.equivalence;
+        if (equivalence != null && data != null) {
+            final Object fingerprint = equivalence.fingerprint(data);
+            synchronized (fingerprints) {
+                fingerprints.put(data, fingerprint);
+            }
+        }
+    }
+
     public void onCanceled(D data) {
+        forgetFingerprint(data);
+        restoreChanges();
         if (data != null && !loader.isDataReleased(data)) {
-            loader.releaseData(data);
+            release(data);
         }
+        notifyDependents();
     }
 
     public void deliverResult(D data) {
         if (loader.isReset()) {
+            forgetFingerprint(data);
             if (data != null) {
-                loader.releaseData(data);
+                release(data);
             }
             return;
         }
 
         final D oldResult = result;
+        if (data != oldResult) {
+            final Object fingerprint = takeFingerprint(data);
+            if (oldResult != null && fingerprint != null && fingerprint.equals(resultFingerprint)) {
+                suppressedDeliveryCount++;
+                if (!loader.isDataReleased(data)) {
+                    release(data);
+                }
+                commitChanges();
+                notifyDependents();
+                return;
+            }
+            resultFingerprint = fingerprint;
+        }
         result = data;
+        commitChanges();
 
         if (loader.isStarted()) {
             loader.superDeliverResult(data);
         }
 
+        notifyDependents();
         if (oldResult != null && oldResult != data && !loader.isDataReleased(oldResult)) {
-            loader.releaseData(oldResult);
+            release(oldResult);
         }
     }
 
     public void onReset() {
+        backgroundLoadCanceled = true;
+        for (LoaderDependency<?> dependency : upstreams) {
+            dependency.detach();
+        }
         loader.cancelLoadCompat();
 
-        if (result != null && !loader.isDataReleased(result)) {
-            loader.releaseData(result);
-        }
+        final D oldResult = result;
         result = null;
+        notifyDependents();
+        if (oldResult != null && !loader.isDataReleased(oldResult)) {
+            release(oldResult);
+        }
+        resultFingerprint = null;
+        synchronized (changeLock) {
+            changeBase = null;
+            pendingChanges.clear();
+            pendingFullReload = false;
+            inFlightChanges = null;
+        }
+    }
+
+    private void commitChanges() {
+        synchronized (changeLock) {
+            changeBase = result;
+            if (!redelivering) {
+                inFlightChanges = null;
+            }
+        }
+    }
+
+    private void restoreChanges() {
+        synchronized (changeLock) {
+            if (inFlightChanges == null) {
+                return;
+            }
+            if (inFlightFullReload) {
+                pendingFullReload = true;
+            }
+            if (!pendingFullReload) {
+                final List<Object> restored = new ArrayList<Object>(inFlightChanges);
+                restored.addAll(pendingChanges);
+                pendingChanges = restored;
+                if (pendingChanges.size() > maxChanges) {
+                    pendingFullReload = true;
+                }
+            }
+            if (pendingFullReload) {
+                pendingChanges.clear();
+            }
+            inFlightChanges = null;
+        }
+    }
+
+    // Called on the background thread once the load no longer reads the previous data item
+    private void endChangeBaseHold() {
+        final D base;
+        synchronized (changeLock) {
+            base = changeBaseReleaseDeferred ? heldChangeBase : null;
+            heldChangeBase = null;
+            changeBaseReleaseDeferred = false;
+        }
+        if (base != null) {
+            postToMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    releaseDeferred(base);
+                }
+            });
+        }
+    }
+
+    // Called on the main thread before a data item is released
+    private boolean deferChangeBaseRelease(D data) {
+        synchronized (changeLock) {
+            if (data == null || data != heldChangeBase) {
+                return false;
+            }
+            changeBaseReleaseDeferred = true;
+            return true;
+        }
+    }
+
+    private void notifyDependents() {
+        for (LoaderDependency<D> dependency : dependencies) {
+            dependency.onDelivered(result);
+        }
+    }
+
+    private Object takeFingerprint(D data) {
+        final ContentEquivalence<D> equivalence = this.equivalence;
+        if (equivalence == null || data == null) {
+            return null;
+        }
+        synchronized (fingerprints) {
+            if (fingerprints.containsKey(data)) {
+                return fingerprints.remove(data);
+            }
+        }
+        return equivalence.fingerprint(data);
+    }
+
+    private void forgetFingerprint(D data) {
+        if (data != null && equivalence != null) {
+            synchronized (fingerprints) {
+                fingerprints.remove(data);
+            }
+        }
+    }
+
+    protected void release(D data) {
+        for (LoaderDependency<D> dependency : dependencies) {
+            if (dependency.deferRelease(data)) {
+                return;
+            }
+        }
+        if (deferChangeBaseRelease(data)) {
+            return;
+        }
+        loader.releaseData(data);
+        if (data instanceof Result && ResultLeakTracker.isEnabled()) {
+            ResultLeakTracker.untrack((Result) data);
+        }
+    }
+
+    // Called on the main thread once no load holds the data item
+    void releaseDeferred(D data) {
+        if (data != result && !loader.isDataReleased(data)) {
+            release(data);
+        }
+    }
+
+    /**
+     * Returns a {@link ContentEquivalence} that uses the data item itself as its fingerprint,
+     * so data items are compared with {@link Object#equals(Object)}.  Only use it with data items
+     * that implement {@link Object#equals(Object)} and {@link Object#hashCode()} by content:
+     * with identity equality, two loads of the same content never match and nothing is
+     * suppressed.  {@link BaseResult} does not implement them; use {@link #dataEquivalence()}
+     * for {@link BaseResult}s.
+     *
+     * @param <D> Data item.
+     * @return {@link ContentEquivalence} based on {@link Object#equals(Object)}.
+     */
+    public static <D> ContentEquivalence<D> equalsEquivalence() {
+        return new ContentEquivalence<D>() {
+            @Override
+            public Object fingerprint(D data) {
+                return data;
+            }
+        };
+    }
+
+    /**
+     * Returns a {@link ContentEquivalence} for {@link BaseResult}s that fingerprints
+     * {@link BaseResult#getData()}, so the data must implement {@link Object#equals(Object)}
+     * and {@link Object#hashCode()} by content (e.g., {@link String}, or a {@link java.util.List}
+     * of such values).  {@link BaseResult}s with an error are always delivered.
+     *
+     * @param <R> {@link BaseResult}.
+     * @return {@link ContentEquivalence} based on the data of {@link BaseResult}s.
+     */
+    public static <R extends BaseResult<?, ?>> ContentEquivalence<R> dataEquivalence() {
+        return new ContentEquivalence<R>() {
+            @Override
+            public Object fingerprint(R data) {
+                return data.hasError() ? null : data.getData();
+            }
+        };
+    }
+
+    /**
+     * Cancels a load whose slot was taken back by a {@link LoadScheduler} and queues it again.
+     */
+    private final class QueuedLoad implements Runnable {
+        private final Runnable start;
+        volatile AdaptiveLimiter.Ticket ticket;
+
+        QueuedLoad(Runnable start) {
+            this.start = start;
+        }
+
+        // Called on the thread that freed the slot
+        @Override
+        public void run() {
+            postToMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (ticket == null || queuedLoad != ticket) {
+                        return;
+                    }
+                    queuedLoad = null;
+                    grantedLoad.set(ticket);
+                    startingLoad = true;
+                    try {
+                        start.run();
+                    } finally {
+                        startingLoad = false;
+                    }
+                }
+            });
+        }
+    }
+
+    final class Preemption implements Runnable {
+        volatile AdaptiveLimiter.Ticket ticket;
+
+        // Called on the thread that requested the slot the preempted load held
+        @Override
+        public void run() {
+            postToMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (ticket == null || getLoadTicket() != ticket) {
+                        return;
+                    }
+                    loader.cancelLoadCompat();
+                    if (loader.isStarted()) {
+                        loader.forceLoad();
+                    } else {
+                        loader.onContentChanged();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes and reads data items for snapshots that survive process death.
+     * Keep snapshots small: they are encoded and decoded on the main thread.
+     *
+     * @param <D> Data item.
+     */
+    public interface SnapshotCodec<D> {
+        /**
+         * Writes a data item.
+         *
+         * @param data Data item, never {@code null}.
+         * @param out  Output to write to.
+         * @throws IOException If the data item cannot be written.
+         */
+        void write(D data, DataOutput out) throws IOException;
+
+        /**
+         * Reads a data item written by {@link #write(Object, DataOutput)}.
+         *
+         * @param in Input to read from.
+         * @return Data item.
+         * @throws IOException If the data item cannot be read.
+         */
+        D read(DataInput in) throws IOException;
+    }
+
+    /**
+     * Computes content fingerprints used to detect redundant deliveries.
+     *
+     * @param <D> Data item.
+     */
+    public interface ContentEquivalence<D> {
+        /**
+         * Computes a fingerprint of the data item.  Two data items with equal fingerprints
+         * are considered to have the same content.  Usually called on a background thread,
+         * right after the data item is loaded.
+         *
+         * @param data Data item, never {@code null}.
+         * @return Fingerprint of the data item, or {@code null} if the data item should
+         * always be delivered (e.g., it has an error).
+         */
+        Object fingerprint(D data);
     }
 
     /**
@@ -119,6 +878,13 @@ public class TaskLoaderDelegate<D, LM extends TaskLoaderDelegate.TaskLoaderMetho
          */
         boolean takeContentChanged();
 
+        /**
+         * Called when the loader's content has changed.  Starts a new load if the loader
+         * is started, otherwise remembers the change for {@link #takeContentChanged()}.
+         * Must be called from the process's main thread.
+         */
+        void onContentChanged();
+
         /**
          * Force an asynchronous load. Unlike This will ignore a previously
          * loaded data set and load a new one.  You generally should only call this
@@ -3,6 +3,9 @@ package mobi.tjorn.content.common;
 import android.os.Handler;
 import android.os.OperationCanceledException;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import mobi.tjorn.content.loaders.WorkerLoader;
 
 /**
@@ -10,35 +13,318 @@ import mobi.tjorn.content.loaders.WorkerLoader;
  * on how data are loaded.
  */
 public class WorkerLoaderDelegate<D, LM extends WorkerLoaderDelegate.WorkerLoaderMethods<D>> extends TaskLoaderDelegate<D, LM> {
+    private static final int LATENCY_WINDOW = 100;
+    private static final int MIN_HEDGE_SAMPLES = 20;
+
     private final Object lock = new Object();
-    private final Handler dispatcher = new Handler();
+    private final Dispatcher dispatcher;
     private final Worker<D> worker;
-    private ResultListener<D> resultListener;
+    private final LatencyRecorder latencies = new LatencyRecorder(LATENCY_WINDOW);
+    private Load load;
+    private long deadlineMillis;
+    private TimeoutHandler<D> timeoutHandler;
+    private double hedgePercentile;
+    private WorkerFactory<D> hedgeFactory;
+    private int timeoutCount;
+    private int hedgeCount;
+    private int hedgeWinCount;
+    private RestartPolicy restartPolicy = RestartPolicy.RESTART;
+    private boolean reloadPending;
+    private int wastedRestartCount;
+    private int coalescedForceLoadCount;
+    private int ignoredForceLoadCount;
 
     public WorkerLoaderDelegate(LM loader, Worker<D> worker) {
+        this(loader, worker, new HandlerDispatcher());
+    }
+
+    /**
+     * Initializes new delegate that posts to the given {@link Dispatcher} instead of
+     * a {@link Handler} bound to the current thread.  Useful for tests and simulations.
+     *
+     * @param loader     The loader.
+     * @param worker     Loads data.
+     * @param dispatcher Runs delegate callbacks on the loader's thread.
+     */
+    public WorkerLoaderDelegate(LM loader, Worker<D> worker, Dispatcher dispatcher) {
         super(loader);
         this.worker = worker;
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Sets a per-load deadline.  When a load does not finish within {@code deadlineMillis},
+     * the {@link Worker} is canceled and the result created by {@code timeoutHandler}
+     * is delivered instead.  The deadline runs from when the {@link Worker} starts; time spent
+     * waiting for a slot of the {@link AdaptiveLimiter} does not count against it.
+     * Must be called from the process's main thread.
+     *
+     * @param deadlineMillis Deadline in milliseconds, or {@code 0} to disable the deadline.
+     * @param timeoutHandler Creates timeout results.  Required if {@code deadlineMillis} is positive.
+     */
+    public void setDeadline(long deadlineMillis, TimeoutHandler<D> timeoutHandler) {
+        if (deadlineMillis > 0 && timeoutHandler == null) {
+            throw new IllegalArgumentException("timeoutHandler is required");
+        }
+        this.deadlineMillis = deadlineMillis;
+        this.timeoutHandler = timeoutHandler;
+    }
+
+    /**
+     * Enables hedged loads.  When a load runs longer than the given percentile of recently
+     * observed load latencies, a second {@link Worker} is created by {@code hedgeFactory}
+     * and started.  Whichever {@link Worker} finishes first is delivered; the other one is
+     * canceled and its result, if any, is released through
+     * {@link WorkerLoaderMethods#onCanceled(Object)}.
+     * Latencies are measured from when the original {@link Worker} starts, and a load that
+     * misses its deadline counts as taking the whole deadline.
+     * Hedging starts once enough latencies have been observed.
+     * Must be called from the process's main thread.
+     *
+     * @param percentile   Latency percentile between {@code 0} and {@code 100}, e.g. {@code 95}.
+     * @param hedgeFactory Creates hedge workers, or {@code null} to disable hedging.
+     */
+    public void setHedging(double percentile, WorkerFactory<D> hedgeFactory) {
+        if (hedgeFactory != null && (percentile <= 0 || percentile > 100)) {
+            throw new IllegalArgumentException("percentile must be in (0, 100]: " + percentile);
+        }
+        this.hedgePercentile = percentile;
+        this.hedgeFactory = hedgeFactory;
+    }
+
+    /**
+     * Returns the number of loads that missed their deadline.
+     *
+     * @return Number of timed out loads.
+     */
+    public int getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    /**
+     * Returns the number of hedge workers started.
+     *
+     * @return Number of hedged loads.
+     */
+    public int getHedgeCount() {
+        return hedgeCount;
+    }
+
+    /**
+     * Returns the number of hedge workers that finished before the original worker.
+     *
+     * @return Number of loads won by a hedge worker.
+     */
+    public int getHedgeWinCount() {
+        return hedgeWinCount;
+    }
+
+    /**
+     * Sets what {@link #onForceLoad()} does while a load is running.
+     * Must be called from the process's main thread.
+     *
+     * @param restartPolicy New policy.  The default is {@link RestartPolicy#RESTART}.
+     */
+    public void setRestartPolicy(RestartPolicy restartPolicy) {
+        if (restartPolicy == null) {
+            throw new IllegalArgumentException("restartPolicy is required");
+        }
+        this.restartPolicy = restartPolicy;
+    }
+
+    /**
+     * Returns the number of running loads that were canceled and restarted
+     * by {@link #onForceLoad()} under {@link RestartPolicy#RESTART}.
+     *
+     * @return Number of wasted restarts.
+     */
+    public int getWastedRestartCount() {
+        return wastedRestartCount;
+    }
+
+    /**
+     * Returns the number of {@link #onForceLoad()} calls folded into a pending reload
+     * under {@link RestartPolicy#COALESCE}.
+     *
+     * @return Number of coalesced force loads.
+     */
+    public int getCoalescedForceLoadCount() {
+        return coalescedForceLoadCount;
+    }
+
+    /**
+     * Returns the number of {@link #onForceLoad()} calls dropped
+     * under {@link RestartPolicy#IGNORE_WHILE_RUNNING}.
+     *
+     * @return Number of ignored force loads.
+     */
+    public int getIgnoredForceLoadCount() {
+        return ignoredForceLoadCount;
     }
 
     public void onForceLoad() {
+        final boolean running;
+        synchronized (lock) {
+            running = load != null;
+        }
+        if (running) {
+            switch (restartPolicy) {
+                case COALESCE:
+                    reloadPending = true;
+                    coalescedForceLoadCount++;
+                    return;
+                case IGNORE_WHILE_RUNNING:
+                    ignoredForceLoadCount++;
+                    return;
+                default:
+                    wastedRestartCount++;
+                    break;
+            }
+        }
         loader.cancelLoadCompat();
+        final Load newLoad = new Load();
+        final AdaptiveLimiter limiter = this.limiter;
+        synchronized (lock) {
+            load = newLoad;
+            if (limiter == null) {
+                newLoad.startPrimary();
+            }
+        }
+        if (limiter != null) {
+            final Preemption preemption = new Preemption();
+            newLoad.ticket = limiter.enqueue(loadPriority, newLoad.grant, preemption);
+            preemption.ticket = newLoad.ticket;
+        }
+    }
+
+    @Override
+    protected AdaptiveLimiter.Ticket getLoadTicket() {
         synchronized (lock) {
-            resultListener = new ResultListenerImpl();
-            worker.start(resultListener);
+            return load != null ? load.ticket : null;
         }
     }
 
+    @Override
+    protected void postToMainThread(Runnable task) {
+        dispatcher.post(task);
+    }
+
     public boolean onCancelLoad() {
+        reloadPending = false;
         synchronized (lock) {
-            if (resultListener != null) {
-                worker.cancel();
-                resultListener = null;
+            if (load != null) {
+                final Load canceled = load;
+                load = null;
+                canceled.cancel(null);
+                canceled.releaseSlot(false);
                 return true;
             }
             return false;
         }
     }
 
+    private void reloadIfPending() {
+        if (reloadPending) {
+            reloadPending = false;
+            loader.forceLoad();
+        }
+    }
+
+    /**
+     * Defines what {@link #onForceLoad()} does while a load is running.
+     */
+    public enum RestartPolicy {
+        /**
+         * Cancels the running load and starts a new one.
+         */
+        RESTART,
+        /**
+         * Lets the running load finish and then starts exactly one more load,
+         * no matter how many force loads came in meanwhile.
+         */
+        COALESCE,
+        /**
+         * Lets the running load finish and drops force loads that came in meanwhile.
+         */
+        IGNORE_WHILE_RUNNING
+    }
+
+    /**
+     * Runs delegate callbacks on the loader's thread, normally the process's main thread.
+     */
+    public interface Dispatcher {
+        /**
+         * Runs {@code runnable} on the loader's thread.
+         *
+         * @param runnable Callback to run.
+         */
+        void post(Runnable runnable);
+
+        /**
+         * Runs {@code runnable} on the loader's thread after a delay.
+         *
+         * @param runnable    Callback to run.
+         * @param delayMillis Delay in milliseconds.
+         */
+        void postDelayed(Runnable runnable, long delayMillis);
+
+        /**
+         * Removes pending posts of {@code runnable}.
+         *
+         * @param runnable Callback to remove.
+         */
+        void removeCallbacks(Runnable runnable);
+    }
+
+    private static class HandlerDispatcher implements Dispatcher {
+        private final Handler handler = new Handler();
+
+        @Override
+        public void post(Runnable runnable) {
+            handler.post(runnable);
+        }
+
+        @Override
+        public void postDelayed(Runnable runnable, long delayMillis) {
+            handler.postDelayed(runnable, delayMillis);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable runnable) {
+            handler.removeCallbacks(runnable);
+        }
+    }
+
+    /**
+     * Creates results delivered when a load misses its deadline.
+     *
+     * @param <D> Data item to create.
+     */
+    public interface TimeoutHandler<D> {
+        /**
+         * Called on UI thread when a load misses its deadline.
+         *
+         * @param deadlineMillis The deadline that was missed.
+         * @return A result that describes the timeout, typically an error result.
+         */
+        D createTimeoutResult(long deadlineMillis);
+    }
+
+    /**
+     * Creates {@link Worker}s for hedged loads.
+     *
+     * @param <D> Data item to load.
+     */
+    public interface WorkerFactory<D> {
+        /**
+         * Called on UI thread to create a {@link Worker} that runs concurrently with
+         * the loader's own {@link Worker}.
+         *
+         * @return A new {@link Worker}.
+         */
+        Worker<D> createWorker();
+    }
+
     public interface WorkerLoaderMethods<D> extends TaskLoaderMethods<D> {
 
         /**
@@ -101,19 +387,147 @@ public class WorkerLoaderDelegate<D, LM extends WorkerLoaderDelegate.WorkerLoade
     }
 
 
-    private class ResultListenerImpl implements ResultListener<D> {
+    private class Load {
+        private final List<Attempt> attempts = new ArrayList<Attempt>(2);
+        private Attempt primary;
+        private long startNanos;
+        private volatile AdaptiveLimiter.Ticket ticket;
+        private final Runnable grant = new Runnable() {
+            @Override
+            public void run() {
+                dispatcher.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (lock) {
+                            if (load == Load.this && attempts.isEmpty()) {
+                                startPrimary();
+                            }
+                        }
+                    }
+                });
+            }
+        };
+        private final Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (lock) {
+                    if (load != Load.this) {
+                        return;
+                    }
+                    load = null;
+                    cancel(null);
+                }
+                releaseSlot(true);
+                latencies.record(deadlineMillis);
+                timeoutCount++;
+                loader.deliverResult(timeoutHandler.createTimeoutResult(deadlineMillis));
+                reloadIfPending();
+            }
+        };
+        private final Runnable hedge = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (lock) {
+                    // A load still queued in the limiter has nothing to hedge
+                    if (load != Load.this || attempts.isEmpty()) {
+                        return;
+                    }
+                    start(hedgeFactory.createWorker());
+                }
+                hedgeCount++;
+            }
+        };
+
+        // Called with lock held, once the load holds its limiter slot
+        void startPrimary() {
+            startNanos = System.nanoTime();
+            primary = start(worker);
+            if (deadlineMillis > 0) {
+                dispatcher.postDelayed(timeout, deadlineMillis);
+            }
+            if (hedgeFactory != null && latencies.size() >= MIN_HEDGE_SAMPLES) {
+                dispatcher.postDelayed(hedge, latencies.percentile(hedgePercentile));
+            }
+        }
+
+        // Called with lock held
+        Attempt start(Worker<D> attemptWorker) {
+            final Attempt attempt = new Attempt(this, attemptWorker);
+            attempts.add(attempt);
+            attemptWorker.start(attempt);
+            return attempt;
+        }
+
+        // Called with lock held
+        void cancel(Attempt winner) {
+            dispatcher.removeCallbacks(timeout);
+            dispatcher.removeCallbacks(hedge);
+            for (Attempt attempt : attempts) {
+                if (attempt != winner && (load == null || !load.uses(attempt.worker))) {
+                    attempt.worker.cancel();
+                }
+            }
+        }
+
+        void releaseSlot(boolean completed) {
+            final AdaptiveLimiter limiter = WorkerLoaderDelegate.this.limiter;
+            if (ticket != null && limiter != null) {
+                if (completed) {
+                    limiter.release(ticket);
+                } else {
+                    limiter.cancel(ticket);
+                }
+            }
+        }
+
+        // Called with lock held
+        boolean uses(Worker<D> attemptWorker) {
+            for (Attempt attempt : attempts) {
+                if (attempt.worker == attemptWorker) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void finish(Attempt winner) {
+            synchronized (lock) {
+                cancel(winner);
+            }
+            releaseSlot(true);
+            latencies.record((System.nanoTime() - startNanos) / 1000000);
+            if (winner != primary) {
+                hedgeWinCount++;
+            }
+        }
+    }
+
+    private class Attempt implements ResultListener<D> {
+        private final Load owner;
+        private final Worker<D> worker;
+
+        Attempt(Load owner, Worker<D> worker) {
+            this.owner = owner;
+            this.worker = worker;
+        }
+
         @Override
         public void onResult(final D result) {
+            onLoadedInBackground(result);
             synchronized (lock) {
-                final boolean canceled = this != resultListener;
-                resultListener = null;
+                final boolean canceled = owner != load;
+                if (!canceled) {
+                    load = null;
+                }
                 dispatcher.post(new Runnable() {
                     @Override
                     public void run() {
                         if (canceled) {
                             loader.onCanceled(result);
                         } else {
+                            owner.finish(Attempt.this);
                             loader.deliverResult(result);
+                            reloadIfPending();
                         }
                     }
                 });
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2016 TJORN LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobi.tjorn.content.loaders;
+
+import android.content.Context;
+
+import mobi.tjorn.content.common.Pipeline;
+import mobi.tjorn.content.common.Result;
+
+/**
+ * A {@link ResultWorkerLoader} that loads its {@link Result} with a {@link Pipeline}.
+ * Each stage of the {@link Pipeline} runs on its own executor, and {@link #cancelLoadCompat()}
+ * interrupts whichever stage is active.
+ */
+public abstract class PipelineResultLoader<R extends Result> extends ResultWorkerLoader<R> {
+    protected PipelineResultLoader(Context context, Pipeline<R> pipeline) {
+        super(context, pipeline);
+    }
+}
@@ -19,8 +19,15 @@ package mobi.tjorn.content.loaders;
 import android.content.AsyncTaskLoader;
 import android.content.Context;
 import android.os.Build;
+import android.os.Bundle;
 
+import java.io.File;
+
+import mobi.tjorn.content.common.AdaptiveLimiter;
 import mobi.tjorn.content.common.BaseResult;
+import mobi.tjorn.content.common.ChangeSet;
+import mobi.tjorn.content.common.LoadScheduler;
+import mobi.tjorn.content.common.LoaderDependency;
 import mobi.tjorn.content.common.SimpleResult;
 import mobi.tjorn.content.common.TaskLoaderDelegate;
 
@@ -40,13 +47,196 @@ import mobi.tjorn.content.common.TaskLoaderDelegate;
  * please take a look at {@link SimpleResultTaskLoader} and {@link SimpleResult}.
  */
 public abstract class TaskLoader<D> extends AsyncTaskLoader<D> implements TaskLoaderDelegate.TaskLoaderMethods<D> {
+    private static final String SNAPSHOT_DIR = "loader-snapshots";
+
     private final TaskLoaderDelegate<D, TaskLoaderDelegate.TaskLoaderMethods<D>> delegate;
+    private final Runnable startLoad = new Runnable() {
+        @Override
+        public void run() {
+            TaskLoader.super.onForceLoad();
+        }
+    };
 
     public TaskLoader(Context context) {
         super(context);
         this.delegate = new TaskLoaderDelegate<D, TaskLoaderDelegate.TaskLoaderMethods<D>>(this);
     }
 
+    /**
+     * Enables or disables suppression of redundant deliveries.
+     *
+     * @param equivalence Computes data fingerprints, or {@code null} to deliver every data item.
+     * @see TaskLoaderDelegate#setContentEquivalence(TaskLoaderDelegate.ContentEquivalence)
+     */
+    protected void setContentEquivalence(TaskLoaderDelegate.ContentEquivalence<D> equivalence) {
+        delegate.setContentEquivalence(equivalence);
+    }
+
+    /**
+     * Returns the number of deliveries suppressed because the new data item was equivalent
+     * to the current result.
+     *
+     * @return Number of suppressed deliveries.
+     */
+    public int getSuppressedDeliveryCount() {
+        return delegate.getSuppressedDeliveryCount();
+    }
+
+    /**
+     * Puts an {@link AdaptiveLimiter} in front of this loader's loads.  Loads over the limit
+     * wait in the limiter queue before they take a background thread.  Share one
+     * {@link LoadScheduler} between all loaders to prioritize and preempt loads across
+     * loader families.
+     *
+     * @param limiter  A limiter shared with other loaders, or {@code null} to run loads without a limit.
+     * @param priority Priority of this loader's loads; higher priorities start first.
+     */
+    public void setConcurrencyLimiter(AdaptiveLimiter limiter, int priority) {
+        delegate.setConcurrencyLimiter(limiter, priority);
+    }
+
+    /**
+     * Changes the priority of this loader's loads, including a load that is already queued.
+     * Call it when the loader's data moves on or off screen, e.g. with
+     * {@link LoadScheduler#PRIORITY_VISIBLE} and {@link LoadScheduler#PRIORITY_OFFSCREEN}.
+     *
+     * @param priority Priority of this loader's loads; higher priorities start first.
+     */
+    public void setLoadPriority(int priority) {
+        delegate.setLoadPriority(priority);
+    }
+
+    /**
+     * Enables or disables snapshots of the delivered data item across process death.
+     * With a codec set, {@link #saveSnapshot(Bundle)} and {@link #restoreSnapshot(Bundle)}
+     * let a recreated activity show the last data item right away while a fresh load runs.
+     *
+     * @param codec          Writes and reads data items, or {@code null} to disable snapshots.
+     * @param maxInlineBytes Snapshots up to this size are kept in the saved instance state;
+     *                       larger snapshots are written to the cache directory.
+     */
+    protected void setSnapshotCodec(TaskLoaderDelegate.SnapshotCodec<D> codec, int maxInlineBytes) {
+        delegate.setSnapshotCodec(codec, maxInlineBytes);
+    }
+
+    /**
+     * Saves a snapshot of the delivered data item.  Call it from {@code onSaveInstanceState()}
+     * of the activity or fragment that owns the loader.
+     *
+     * @param outState Saved instance state.
+     * @return {@code true} if a snapshot was saved, {@code false} otherwise.
+     */
+    public boolean saveSnapshot(Bundle outState) {
+        return delegate.saveSnapshot(outState, getSnapshotKey(),
+                new File(getContext().getCacheDir(), SNAPSHOT_DIR));
+    }
+
+    /**
+     * Restores a snapshot saved by {@link #saveSnapshot(Bundle)}.  Call it with the saved
+     * instance state right after the loader is initialized.  The snapshot is delivered
+     * as the loader's data and a fresh load is started.
+     *
+     * @param savedState Saved instance state, may be {@code null}.
+     * @return {@code true} if a snapshot was restored, {@code false} otherwise.
+     */
+    public boolean restoreSnapshot(Bundle savedState) {
+        return delegate.restoreSnapshot(savedState, getSnapshotKey());
+    }
+
+    private String getSnapshotKey() {
+        return getClass().getName() + ":" + getId();
+    }
+
+    /**
+     * Enables or disables incremental reloads.  When enabled, changes reported with
+     * {@link #onContentChanged(Object)} accumulate while the loader runs or is stopped,
+     * and {@link #loadInBackground()} can patch the previous data item by calling
+     * {@link #takeChanges()} instead of rebuilding it.
+     *
+     * @param maxChanges Maximum number of changes to keep; more changes fall back
+     *                   to a full reload.  {@code 0} disables incremental reloads.
+     */
+    protected void setIncrementalReloads(int maxChanges) {
+        delegate.setIncrementalReloads(maxChanges);
+    }
+
+    /**
+     * Takes the changes accumulated since the previous load, together with the data item
+     * delivered by the previous load.  Call it once from {@link #loadInBackground()}.
+     *
+     * @return Accumulated changes.
+     */
+    protected final ChangeSet<D> takeChanges() {
+        return delegate.takeChanges();
+    }
+
+    /**
+     * Reports a content change that requires a full reload.
+     */
+    @Override
+    public void onContentChanged() {
+        delegate.recordChange(null);
+        super.onContentChanged();
+    }
+
+    /**
+     * Reports a content change described by {@code change}, for example the {@code Uri}
+     * of a changed row.  Must be called from the process's main thread.
+     *
+     * @param change Change descriptor passed to the next load through {@link #takeChanges()}.
+     */
+    public void onContentChanged(Object change) {
+        delegate.recordChange(change);
+        super.onContentChanged();
+    }
+
+    final LoaderDependency<D> addDependent(TaskLoader<?> dependent) {
+        return delegate.addDependent(dependent.delegate);
+    }
+
+    @Override
+    protected D onLoadInBackground() {
+        delegate.onBackgroundLoadStarted();
+        try {
+            final D data = loadInBackgroundGuarded();
+            delegate.onLoadedInBackground(data);
+            return data;
+        } finally {
+            delegate.onBackgroundLoadFinished();
+        }
+    }
+
+    // Loads the data item holding a limiter slot, if any
+    D loadInBackgroundGuarded() {
+        final AdaptiveLimiter.Ticket ticket = delegate.acquireLoadSlot();
+        try {
+            if (isBackgroundLoadCanceled()) {
+                // Canceled while waiting for a slot
+                return null;
+            }
+            return super.onLoadInBackground();
+        } finally {
+            delegate.releaseLoadSlot(ticket);
+        }
+    }
+
+    final boolean isBackgroundLoadCanceled() {
+        return delegate.isBackgroundLoadCanceled();
+    }
+
+    @Override
+    protected void onForceLoad() {
+        if (!delegate.enqueueLoad(startLoad)) {
+            super.onForceLoad();
+        }
+    }
+
+    @Override
+    protected boolean onCancelLoad() {
+        delegate.onBackgroundLoadCanceled();
+        return super.onCancelLoad();
+    }
+
     @Override
     protected void onStartLoading() {
         delegate.onStartLoading();
@@ -19,9 +19,15 @@ package mobi.tjorn.content.loaders;
 import android.content.Context;
 import android.content.Loader;
 import android.os.Build;
+import android.os.Bundle;
 
+import java.io.File;
+
+import mobi.tjorn.content.common.AdaptiveLimiter;
 import mobi.tjorn.content.common.BaseResult;
+import mobi.tjorn.content.common.LoadScheduler;
 import mobi.tjorn.content.common.SimpleResult;
+import mobi.tjorn.content.common.TaskLoaderDelegate;
 import mobi.tjorn.content.common.WorkerLoaderDelegate;
 
 /**
@@ -41,6 +47,8 @@ import mobi.tjorn.content.common.WorkerLoaderDelegate;
  * please take a look at {@link SimpleResultWorkerLoader} and {@link SimpleResult}.
  */
 public abstract class WorkerLoader<D> extends Loader<D> implements WorkerLoaderDelegate.WorkerLoaderMethods<D> {
+    private static final String SNAPSHOT_DIR = "loader-snapshots";
+
     private final WorkerLoaderDelegate<D, WorkerLoaderDelegate.WorkerLoaderMethods<D>> delegate;
 
     public WorkerLoader(Context context, WorkerLoaderDelegate.Worker<D> worker) {
@@ -48,6 +56,175 @@ public abstract class WorkerLoader<D> extends Loader<D> implements WorkerLoaderD
         this.delegate = new WorkerLoaderDelegate<D, WorkerLoaderDelegate.WorkerLoaderMethods<D>>(this, worker);
     }
 
+    /**
+     * Enables or disables suppression of redundant deliveries.
+     *
+     * @param equivalence Computes data fingerprints, or {@code null} to deliver every data item.
+     * @see TaskLoaderDelegate#setContentEquivalence(TaskLoaderDelegate.ContentEquivalence)
+     */
+    protected void setContentEquivalence(TaskLoaderDelegate.ContentEquivalence<D> equivalence) {
+        delegate.setContentEquivalence(equivalence);
+    }
+
+    /**
+     * Returns the number of deliveries suppressed because the new data item was equivalent
+     * to the current result.
+     *
+     * @return Number of suppressed deliveries.
+     */
+    public int getSuppressedDeliveryCount() {
+        return delegate.getSuppressedDeliveryCount();
+    }
+
+    /**
+     * Puts an {@link AdaptiveLimiter} in front of this loader's loads.  Loads over the limit
+     * wait in the limiter queue.  Share one {@link LoadScheduler} between all loaders
+     * to prioritize and preempt loads across loader families.
+     *
+     * @param limiter  A limiter shared with other loaders, or {@code null} to run loads without a limit.
+     * @param priority Priority of this loader's loads; higher priorities start first.
+     */
+    public void setConcurrencyLimiter(AdaptiveLimiter limiter, int priority) {
+        delegate.setConcurrencyLimiter(limiter, priority);
+    }
+
+    /**
+     * Changes the priority of this loader's loads, including a load that is already queued.
+     * Call it when the loader's data moves on or off screen, e.g. with
+     * {@link LoadScheduler#PRIORITY_VISIBLE} and {@link LoadScheduler#PRIORITY_OFFSCREEN}.
+     *
+     * @param priority Priority of this loader's loads; higher priorities start first.
+     */
+    public void setLoadPriority(int priority) {
+        delegate.setLoadPriority(priority);
+    }
+
+    /**
+     * Enables or disables snapshots of the delivered data item across process death.
+     * With a codec set, {@link #saveSnapshot(Bundle)} and {@link #restoreSnapshot(Bundle)}
+     * let a recreated activity show the last data item right away while a fresh load runs.
+     *
+     * @param codec          Writes and reads data items, or {@code null} to disable snapshots.
+     * @param maxInlineBytes Snapshots up to this size are kept in the saved instance state;
+     *                       larger snapshots are written to the cache directory.
+     */
+    protected void setSnapshotCodec(TaskLoaderDelegate.SnapshotCodec<D> codec, int maxInlineBytes) {
+        delegate.setSnapshotCodec(codec, maxInlineBytes);
+    }
+
+    /**
+     * Saves a snapshot of the delivered data item.  Call it from {@code onSaveInstanceState()}
+     * of the activity or fragment that owns the loader.
+     *
+     * @param outState Saved instance state.
+     * @return {@code true} if a snapshot was saved, {@code false} otherwise.
+     */
+    public boolean saveSnapshot(Bundle outState) {
+        return delegate.saveSnapshot(outState, getSnapshotKey(),
+                new File(getContext().getCacheDir(), SNAPSHOT_DIR));
+    }
+
+    /**
+     * Restores a snapshot saved by {@link #saveSnapshot(Bundle)}.  Call it with the saved
+     * instance state right after the loader is initialized.  The snapshot is delivered
+     * as the loader's data and a fresh load is started.
+     *
+     * @param savedState Saved instance state, may be {@code null}.
+     * @return {@code true} if a snapshot was restored, {@code false} otherwise.
+     */
+    public boolean restoreSnapshot(Bundle savedState) {
+        return delegate.restoreSnapshot(savedState, getSnapshotKey());
+    }
+
+    private String getSnapshotKey() {
+        return getClass().getName() + ":" + getId();
+    }
+
+    /**
+     * Sets a per-load deadline.
+     *
+     * @param deadlineMillis Deadline in milliseconds, or {@code 0} to disable the deadline.
+     * @param timeoutHandler Creates results delivered when a load misses its deadline.
+     * @see WorkerLoaderDelegate#setDeadline(long, WorkerLoaderDelegate.TimeoutHandler)
+     */
+    protected void setDeadline(long deadlineMillis, WorkerLoaderDelegate.TimeoutHandler<D> timeoutHandler) {
+        delegate.setDeadline(deadlineMillis, timeoutHandler);
+    }
+
+    /**
+     * Enables hedged loads.
+     *
+     * @param percentile   Latency percentile after which a hedge worker is started.
+     * @param hedgeFactory Creates hedge workers, or {@code null} to disable hedging.
+     * @see WorkerLoaderDelegate#setHedging(double, WorkerLoaderDelegate.WorkerFactory)
+     */
+    protected void setHedging(double percentile, WorkerLoaderDelegate.WorkerFactory<D> hedgeFactory) {
+        delegate.setHedging(percentile, hedgeFactory);
+    }
+
+    /**
+     * Returns the number of loads that missed their deadline.
+     *
+     * @return Number of timed out loads.
+     */
+    public int getTimeoutCount() {
+        return delegate.getTimeoutCount();
+    }
+
+    /**
+     * Returns the number of hedge workers started.
+     *
+     * @return Number of hedged loads.
+     */
+    public int getHedgeCount() {
+        return delegate.getHedgeCount();
+    }
+
+    /**
+     * Returns the number of hedge workers that finished before the original worker.
+     *
+     * @return Number of loads won by a hedge worker.
+     */
+    public int getHedgeWinCount() {
+        return delegate.getHedgeWinCount();
+    }
+
+    /**
+     * Sets what {@link #forceLoad()} does while a load is running.
+     *
+     * @param restartPolicy New policy.  The default is {@link WorkerLoaderDelegate.RestartPolicy#RESTART}.
+     */
+    protected void setRestartPolicy(WorkerLoaderDelegate.RestartPolicy restartPolicy) {
+        delegate.setRestartPolicy(restartPolicy);
+    }
+
+    /**
+     * Returns the number of running loads that were canceled and restarted by {@link #forceLoad()}.
+     *
+     * @return Number of wasted restarts.
+     */
+    public int getWastedRestartCount() {
+        return delegate.getWastedRestartCount();
+    }
+
+    /**
+     * Returns the number of {@link #forceLoad()} calls folded into a pending reload.
+     *
+     * @return Number of coalesced force loads.
+     */
+    public int getCoalescedForceLoadCount() {
+        return delegate.getCoalescedForceLoadCount();
+    }
+
+    /**
+     * Returns the number of {@link #forceLoad()} calls dropped while a load was running.
+     *
+     * @return Number of ignored force loads.
+     */
+    public int getIgnoredForceLoadCount() {
+        return delegate.getIgnoredForceLoadCount();
+    }
+
     @Override
     protected void onStartLoading() {
         delegate.onStartLoading();
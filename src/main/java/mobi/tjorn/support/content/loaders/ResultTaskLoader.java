@@ -18,16 +18,94 @@ package mobi.tjorn.support.content.loaders;
 
 import android.content.Context;
 
+import mobi.tjorn.content.common.BaseResult;
+import mobi.tjorn.content.common.CircuitBreaker;
+import mobi.tjorn.content.common.LoaderDependency;
 import mobi.tjorn.content.common.Result;
 
 /**
  * A base Loader that manages lifecycle of its {@link Result}.
  */
 public abstract class ResultTaskLoader<R extends Result> extends TaskLoader<R> {
+    private volatile CircuitBreaker circuitBreaker;
+    private volatile Object circuitKey;
+    private volatile CircuitBreaker.FailFastHandler<R> failFastHandler;
+
     protected ResultTaskLoader(Context context) {
         super(context);
     }
 
+    /**
+     * Puts a {@link CircuitBreaker} in front of this loader's loads.  While the circuit
+     * of {@code key} is open, loads fail fast with the {@link Result} created by {@code handler}
+     * instead of running.  Failed loads are detected with {@link #isFailure(Result)}.
+     * Must be called from the process's main thread.
+     *
+     * @param breaker A circuit breaker shared with other loaders, or {@code null} to always run loads.
+     * @param key     Key of the circuit this loader's loads go through (e.g., the backend host).
+     * @param handler Creates the {@link Result}s of loads that fail fast.
+     */
+    protected void setCircuitBreaker(CircuitBreaker breaker, Object key, CircuitBreaker.FailFastHandler<R> handler) {
+        this.circuitKey = key;
+        this.failFastHandler = handler;
+        this.circuitBreaker = breaker;
+    }
+
+    /**
+     * Checks if a loaded {@link Result} is a failure.  By default, a {@link BaseResult}
+     * with an error is a failure.
+     * Called on a background thread.
+     *
+     * @param data Loaded {@link Result}.
+     * @return {@code true} if the load failed, {@code false} otherwise.
+     */
+    protected boolean isFailure(R data) {
+        return data instanceof BaseResult && ((BaseResult<?, ?>) data).hasError();
+    }
+
+    /**
+     * Declares that this loader depends on the {@link Result} of another loader.
+     * Call {@link LoaderDependency#await()} from {@link #loadInBackground()} to get the upstream
+     * {@link Result}; the call returns as soon as the upstream loader has delivered it.
+     * When the upstream loader delivers a different {@link Result}, this loader is notified
+     * with {@link #onContentChanged()}.
+     * Must be called from the process's main thread.
+     *
+     * @param upstream The loader whose {@link Result} this loader needs.
+     * @param <U>      Upstream {@link Result}.
+     * @return The dependency to await the upstream {@link Result} with.
+     */
+    protected final <U extends Result> LoaderDependency<U> dependOn(ResultTaskLoader<U> upstream) {
+        return upstream.addDependent(this);
+    }
+
+    @Override
+    R loadInBackgroundGuarded() {
+        final CircuitBreaker breaker = circuitBreaker;
+        final Object key = circuitKey;
+        if (breaker == null) {
+            return super.loadInBackgroundGuarded();
+        }
+        final CircuitBreaker.Permit permit = breaker.tryAcquire(key);
+        if (permit == null) {
+            return failFastHandler.createFailFastResult(key, breaker.getSharedFailure(key));
+        }
+        R data = null;
+        try {
+            data = super.loadInBackgroundGuarded();
+        } finally {
+            if (data != null && !isFailure(data)) {
+                breaker.onSuccess(permit);
+            } else if (data == null && isBackgroundLoadCanceled()) {
+                // A load canceled while it waited for a slot tells nothing about the backend
+                breaker.onCanceled(permit);
+            } else {
+                breaker.onFailure(permit, data);
+            }
+        }
+        return data;
+    }
+
     @Override
     public final boolean isDataReleased(R data) {
         return data.isReleased();
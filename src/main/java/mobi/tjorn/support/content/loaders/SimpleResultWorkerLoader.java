@@ -18,6 +18,8 @@ package mobi.tjorn.support.content.loaders;
 
 import android.content.Context;
 
+import java.util.concurrent.TimeoutException;
+
 import mobi.tjorn.content.common.SimpleResult;
 import mobi.tjorn.content.common.WorkerLoaderDelegate;
 
@@ -28,4 +30,19 @@ public abstract class SimpleResultWorkerLoader<D> extends ResultWorkerLoader<Sim
     protected SimpleResultWorkerLoader(Context context, WorkerLoaderDelegate.Worker<SimpleResult<D>> worker) {
         super(context, worker);
     }
+
+    /**
+     * Sets a per-load deadline.  A load that misses its deadline delivers
+     * a {@link SimpleResult} with a {@link TimeoutException} error.
+     *
+     * @param deadlineMillis Deadline in milliseconds, or {@code 0} to disable the deadline.
+     */
+    protected void setDeadline(long deadlineMillis) {
+        setDeadline(deadlineMillis, new WorkerLoaderDelegate.TimeoutHandler<SimpleResult<D>>() {
+            @Override
+            public SimpleResult<D> createTimeoutResult(long deadlineMillis) {
+                return new SimpleResult<D>(new TimeoutException("Load did not finish in " + deadlineMillis + " ms"));
+            }
+        });
+    }
 }
@@ -0,0 +1,704 @@
+/*
+ * Copyright 2016 TJORN LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobi.tjorn.content.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * <p>
+ * A deterministic simulation that drives the {@link TaskLoaderDelegate.TaskLoaderMethods} and
+ * {@link WorkerLoaderDelegate.WorkerLoaderMethods} contracts through randomized
+ * start/stop/reset/contentChanged/forceLoad sequences.  Background work is simulated with
+ * a {@link VirtualDispatcher}, so a run is fully reproducible from its seed and millions
+ * of transitions take seconds.
+ * </p>
+ * <p>
+ * The harness checks that every delivered {@link Result} is live, that a started loader that
+ * has nothing left to do has delivered its current result, and that every {@link Result}
+ * is released exactly once by the time the loader is reset.  Runs with two loaders also
+ * check that loads sharing a {@link LoadScheduler} never exceed its limit and that a dependent
+ * loader never reads an upstream {@link Result} that was already released.
+ * </p>
+ * <p>
+ * {@link #runBatcher(long)} drives a real {@link BatchingWorker.Batcher} thread instead,
+ * so it is not reproducible from its seed.
+ * </p>
+ */
+class LifecycleSoakHarness {
+    private static final int CHECK_INTERVAL = 1000;
+    private static final int MAX_LOAD_MILLIS = 50;
+    private static final int SLOT_LIMIT = 2;
+    private static final int MAX_POLLS = 5;
+    private static final int POLL_MILLIS = 5;
+    private static final int BATCH_SIZE = 16;
+    private static final int BATCH_KEYS = 64;
+    private static final long BATCH_TIMEOUT_MILLIS = 30000;
+
+    private final long seed;
+    private final Random random;
+    private final VirtualDispatcher dispatcher = new VirtualDispatcher();
+    private final List<TrackedResult> results = new ArrayList<TrackedResult>();
+    private long loadsStarted;
+    private long loadsDelivered;
+    private long loadsWasted;
+    private long lostDeliveries;
+    private long releasedDeliveries;
+    private long stoppedDeliveries;
+    private long slotsHeld;
+    private long slotViolations;
+    private long releasedReads;
+
+    LifecycleSoakHarness(long seed) {
+        this.seed = seed;
+        this.random = new Random(seed);
+    }
+
+    Report runTaskLoader(long transitions) {
+        return run("TaskLoader", transitions, new SimTaskLoader(null, 0));
+    }
+
+    Report runWorkerLoader(long transitions) {
+        return run("WorkerLoader", transitions, new SimWorkerLoader());
+    }
+
+    /**
+     * Runs a dependent loader together with its upstream loader.  Both loaders share
+     * a {@link LoadScheduler}, and the dependent loader has the higher priority.
+     */
+    Report runDependentTaskLoaders(long transitions) {
+        final LoadScheduler scheduler = new LoadScheduler(SLOT_LIMIT, SLOT_LIMIT, SLOT_LIMIT, 2);
+        final SimTaskLoader upstream = new SimTaskLoader(scheduler, LoadScheduler.PRIORITY_OFFSCREEN);
+        final SimTaskLoader dependent = new SimTaskLoader(scheduler, LoadScheduler.PRIORITY_VISIBLE);
+        dependent.dependency = upstream.delegate.addDependent(dependent.delegate);
+        return run("DependentTaskLoaders", transitions, upstream, dependent);
+    }
+
+    /**
+     * Enqueues requests with a shared {@link BatchingWorker.Batcher} and cancels some of them,
+     * then waits until every request that was not removed from its batch got a data item.
+     */
+    Report runBatcher(long requests) throws InterruptedException {
+        final long startNanos = System.nanoTime();
+        final BatchingWorker.Batcher<Integer, TrackedResult> batcher = new BatchingWorker.Batcher<Integer, TrackedResult>(
+                new BatchingWorker.BatchFunction<Integer, TrackedResult>() {
+                    @Override
+                    public List<TrackedResult> load(List<Integer> keys) {
+                        final List<TrackedResult> loaded = new ArrayList<TrackedResult>(keys.size());
+                        for (int i = 0; i < keys.size(); i++) {
+                            loaded.add(newResult());
+                        }
+                        return loaded;
+                    }
+
+                    @Override
+                    public TrackedResult createErrorResult(Integer key, RuntimeException error) {
+                        return newResult();
+                    }
+                }, 1, BATCH_SIZE);
+        final List<BatchRequest> batchRequests = new ArrayList<BatchRequest>();
+        for (long i = 0; i < requests; i++) {
+            final BatchRequest request = new BatchRequest(new BatchingWorker<Integer, TrackedResult>(
+                    batcher, random.nextInt(BATCH_KEYS)));
+            batchRequests.add(request);
+            request.worker.start(request);
+            loadsStarted++;
+            if (random.nextInt(4) == 0) {
+                batchRequests.get(random.nextInt(batchRequests.size())).cancel();
+            }
+        }
+        final long deadline = System.currentTimeMillis() + BATCH_TIMEOUT_MILLIS;
+        while (countBatchResults(batchRequests) < requests - batcher.getCanceledCount()
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        batcher.shutdown();
+        for (BatchRequest request : batchRequests) {
+            // Every request gets at most one data item, and exactly one unless it was canceled
+            final int count = request.getResultCount();
+            if (count > 1 || (count == 0 && !request.isCanceled())) {
+                lostDeliveries++;
+            }
+            request.releaseDelivered();
+        }
+        loadsDelivered = countBatchResults(batchRequests);
+        loadsWasted = batcher.getCanceledCount();
+        return report("Batcher", requests, startNanos);
+    }
+
+    private long countBatchResults(List<BatchRequest> batchRequests) {
+        long count = 0;
+        for (BatchRequest request : batchRequests) {
+            count += request.getResultCount();
+        }
+        return count;
+    }
+
+    private Report run(String name, long transitions, SimLoader... loaders) {
+        final long startNanos = System.nanoTime();
+        for (long i = 1; i <= transitions; i++) {
+            step(loaders.length == 1 ? loaders[0] : loaders[random.nextInt(loaders.length)]);
+            if (i % CHECK_INTERVAL == 0) {
+                for (SimLoader loader : loaders) {
+                    checkQuiescent(loader);
+                }
+            }
+        }
+        for (SimLoader loader : loaders) {
+            loader.stop();
+            loader.reset();
+        }
+        dispatcher.drain();
+        return report(name, transitions, startNanos);
+    }
+
+    private Report report(String name, long transitions, long startNanos) {
+        long doubleReleased = 0;
+        long neverReleased = 0;
+        synchronized (results) {
+            for (TrackedResult result : results) {
+                if (result.getReleaseCount() > 1) {
+                    doubleReleased++;
+                } else if (result.getReleaseCount() == 0) {
+                    neverReleased++;
+                }
+            }
+        }
+        return new Report(name, seed, transitions, System.nanoTime() - startNanos, dispatcher.now(),
+                loadsStarted, loadsDelivered, loadsWasted, doubleReleased, neverReleased,
+                lostDeliveries, releasedDeliveries, stoppedDeliveries, slotViolations, releasedReads);
+    }
+
+    private void step(SimLoader loader) {
+        final int op = random.nextInt(100);
+        if (op < 15) {
+            loader.start();
+        } else if (op < 25) {
+            loader.stop();
+        } else if (op < 30) {
+            loader.reset();
+        } else if (op < 45) {
+            loader.contentChanged();
+        } else if (op < 55) {
+            if (loader.isStarted()) {
+                loader.forceLoad();
+            }
+        } else {
+            for (int i = random.nextInt(3); i >= 0; i--) {
+                dispatcher.runNext();
+            }
+        }
+    }
+
+    private void checkQuiescent(SimLoader loader) {
+        dispatcher.drain();
+        if (loader.isStarted()) {
+            final TrackedResult current = loader.current();
+            if (current == null || current != loader.lastDelivered()) {
+                lostDeliveries++;
+            }
+        }
+    }
+
+    private TrackedResult newResult() {
+        synchronized (results) {
+            final TrackedResult result = new TrackedResult(results.size());
+            results.add(result);
+            return result;
+        }
+    }
+
+    private void onSuperDeliverResult(SimLoader loader, TrackedResult data) {
+        if (data.isReleased()) {
+            releasedDeliveries++;
+        }
+        if (!loader.isStarted()) {
+            stoppedDeliveries++;
+        }
+        if (data != loader.lastDelivered()) {
+            loadsDelivered++;
+        }
+    }
+
+    private long randomDelay() {
+        return random.nextInt(MAX_LOAD_MILLIS);
+    }
+
+    /**
+     * Summary of a soak run.
+     */
+    static class Report {
+        final String loader;
+        final long seed;
+        final long transitions;
+        final long wallNanos;
+        final long virtualMillis;
+        final long loadsStarted;
+        final long loadsDelivered;
+        final long loadsWasted;
+        final long doubleReleased;
+        final long neverReleased;
+        final long lostDeliveries;
+        final long releasedDeliveries;
+        final long stoppedDeliveries;
+        final long slotViolations;
+        final long releasedReads;
+
+        Report(String loader, long seed, long transitions, long wallNanos, long virtualMillis,
+               long loadsStarted, long loadsDelivered, long loadsWasted, long doubleReleased,
+               long neverReleased, long lostDeliveries, long releasedDeliveries, long stoppedDeliveries,
+               long slotViolations, long releasedReads) {
+            this.loader = loader;
+            this.seed = seed;
+            this.transitions = transitions;
+            this.wallNanos = wallNanos;
+            this.virtualMillis = virtualMillis;
+            this.loadsStarted = loadsStarted;
+            this.loadsDelivered = loadsDelivered;
+            this.loadsWasted = loadsWasted;
+            this.doubleReleased = doubleReleased;
+            this.neverReleased = neverReleased;
+            this.lostDeliveries = lostDeliveries;
+            this.releasedDeliveries = releasedDeliveries;
+            this.stoppedDeliveries = stoppedDeliveries;
+            this.slotViolations = slotViolations;
+            this.releasedReads = releasedReads;
+        }
+
+        double loadsPerSecond() {
+            return wallNanos == 0 ? 0 : loadsStarted * 1e9 / wallNanos;
+        }
+
+        boolean isClean() {
+            return doubleReleased == 0 && neverReleased == 0 && lostDeliveries == 0
+                    && releasedDeliveries == 0 && stoppedDeliveries == 0 && slotViolations == 0
+                    && releasedReads == 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s seed=%d transitions=%d wall=%dms virtual=%dms loads=%d (%.0f/s) "
+                            + "delivered=%d wasted=%d doubleReleased=%d neverReleased=%d lostDeliveries=%d "
+                            + "releasedDeliveries=%d stoppedDeliveries=%d slotViolations=%d releasedReads=%d",
+                    loader, seed, transitions, wallNanos / 1000000, virtualMillis, loadsStarted, loadsPerSecond(),
+                    loadsDelivered, loadsWasted, doubleReleased, neverReleased, lostDeliveries,
+                    releasedDeliveries, stoppedDeliveries, slotViolations, releasedReads);
+        }
+    }
+
+    private interface SimLoader {
+        void start();
+
+        void stop();
+
+        void reset();
+
+        void contentChanged();
+
+        void forceLoad();
+
+        boolean isStarted();
+
+        TrackedResult current();
+
+        TrackedResult lastDelivered();
+    }
+
+    /**
+     * Mirrors the parts of {@code android.content.Loader} the delegates rely on.
+     */
+    private abstract class SimLoaderBase implements SimLoader, TaskLoaderDelegate.TaskLoaderMethods<TrackedResult> {
+        boolean started;
+        boolean reset = true;
+        boolean contentChanged;
+        TrackedResult lastDelivered;
+
+        abstract TaskLoaderDelegate<TrackedResult, ?> delegate();
+
+        @Override
+        public void start() {
+            started = true;
+            reset = false;
+            delegate().onStartLoading();
+        }
+
+        @Override
+        public void stop() {
+            started = false;
+            delegate().onStopLoading();
+        }
+
+        @Override
+        public void reset() {
+            delegate().onReset();
+            reset = true;
+            started = false;
+            contentChanged = false;
+            lastDelivered = null;
+        }
+
+        @Override
+        public void contentChanged() {
+            onContentChanged();
+        }
+
+        @Override
+        public void onContentChanged() {
+            if (started) {
+                forceLoad();
+            } else {
+                contentChanged = true;
+            }
+        }
+
+        @Override
+        public boolean takeContentChanged() {
+            final boolean changed = contentChanged;
+            contentChanged = false;
+            return changed;
+        }
+
+        @Override
+        public boolean isStarted() {
+            return started;
+        }
+
+        @Override
+        public boolean isReset() {
+            return reset;
+        }
+
+        @Override
+        public TrackedResult current() {
+            return delegate().result;
+        }
+
+        @Override
+        public TrackedResult lastDelivered() {
+            return lastDelivered;
+        }
+
+        @Override
+        public void superDeliverResult(TrackedResult data) {
+            onSuperDeliverResult(this, data);
+            lastDelivered = data;
+        }
+
+        @Override
+        public boolean isDataReleased(TrackedResult data) {
+            return data.isReleased();
+        }
+
+        @Override
+        public void releaseData(TrackedResult data) {
+            data.release();
+        }
+
+        @Override
+        public void deliverResult(TrackedResult data) {
+            delegate().deliverResult(data);
+        }
+    }
+
+    /**
+     * Simulates {@code AsyncTaskLoader} behind {@code TaskLoader}: one task at a time.
+     * A task forced while a canceled task still runs waits for it; the canceled task's data
+     * goes through {@code onCanceled}.  With a {@link LoadScheduler}, loads are queued with
+     * {@link TaskLoaderDelegate#enqueueLoad(Runnable)} before a task starts.  A dependent loader
+     * polls its {@link LoaderDependency} while it holds its slot.
+     */
+    private class SimTaskLoader extends SimLoaderBase {
+        private final TaskLoaderDelegate<TrackedResult, SimTaskLoader> delegate =
+                new TaskLoaderDelegate<TrackedResult, SimTaskLoader>(this) {
+                    @Override
+                    protected void postToMainThread(Runnable task) {
+                        dispatcher.post(task);
+                    }
+                };
+        private final Runnable startLoad = new Runnable() {
+            @Override
+            public void run() {
+                startLoad();
+            }
+        };
+        private LoaderDependency<TrackedResult> dependency;
+        private Task task;
+        private Task cancellingTask;
+
+        SimTaskLoader(LoadScheduler scheduler, int priority) {
+            delegate.setConcurrencyLimiter(scheduler, priority);
+        }
+
+        @Override
+        TaskLoaderDelegate<TrackedResult, ?> delegate() {
+            return delegate;
+        }
+
+        @Override
+        public void forceLoad() {
+            if (!delegate.enqueueLoad(startLoad)) {
+                startLoad();
+            }
+        }
+
+        private void startLoad() {
+            cancelLoadCompat();
+            task = new Task();
+            loadsStarted++;
+            executePendingTask();
+        }
+
+        @Override
+        public boolean cancelLoadCompat() {
+            delegate.onBackgroundLoadCanceled();
+            if (task == null) {
+                return false;
+            }
+            if (cancellingTask != null) {
+                // The task waits for the canceled task and never starts
+                task = null;
+                return false;
+            }
+            task.canceled = true;
+            cancellingTask = task;
+            task = null;
+            return true;
+        }
+
+        private void executePendingTask() {
+            if (cancellingTask == null && task != null && !task.executed) {
+                task.executed = true;
+                dispatcher.post(task);
+            }
+        }
+
+        private void onTaskCompleted(Task completed, TrackedResult data) {
+            if (task != completed) {
+                loadsWasted++;
+                delegate.onCanceled(data);
+                if (cancellingTask == completed) {
+                    cancellingTask = null;
+                    executePendingTask();
+                }
+            } else {
+                task = null;
+                delegate.deliverResult(data);
+            }
+        }
+
+        private class Task implements Runnable {
+            private boolean executed;
+            private boolean canceled;
+            private boolean started;
+            private boolean loading;
+            private int polls;
+            private AdaptiveLimiter.Ticket ticket;
+            private TrackedResult upstream;
+
+            @Override
+            public void run() {
+                if (!started) {
+                    if (canceled) {
+                        // Canceled before it started, like an AsyncTask that never runs
+                        complete(null);
+                        return;
+                    }
+                    started = true;
+                    delegate.onBackgroundLoadStarted();
+                    ticket = delegate.acquireLoadSlot();
+                    if (ticket != null && ++slotsHeld > SLOT_LIMIT) {
+                        slotViolations++;
+                    }
+                }
+                if (!loading && dependency != null && !awaitUpstream()) {
+                    dispatcher.postDelayed(this, POLL_MILLIS);
+                    return;
+                }
+                if (!loading) {
+                    loading = true;
+                    dispatcher.postDelayed(this, randomDelay());
+                    return;
+                }
+                if (upstream != null && upstream.isReleased()) {
+                    releasedReads++;
+                }
+                final TrackedResult data = delegate.isBackgroundLoadCanceled() ? null : newResult();
+                if (ticket != null) {
+                    slotsHeld--;
+                    delegate.releaseLoadSlot(ticket);
+                }
+                delegate.onLoadedInBackground(data);
+                delegate.onBackgroundLoadFinished();
+                dispatcher.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        complete(data);
+                    }
+                });
+            }
+
+            // Returns false to poll again
+            private boolean awaitUpstream() {
+                try {
+                    upstream = dependency.await(0);
+                } catch (InterruptedException e) {
+                    return true;
+                }
+                return upstream != null || ++polls >= MAX_POLLS;
+            }
+
+            private void complete(TrackedResult data) {
+                onTaskCompleted(this, data);
+            }
+        }
+    }
+
+    /**
+     * Drives {@link WorkerLoaderDelegate} with a simulated {@link WorkerLoaderDelegate.Worker},
+     * a random restart policy, a deadline and hedging.
+     */
+    private class SimWorkerLoader extends SimLoaderBase implements WorkerLoaderDelegate.WorkerLoaderMethods<TrackedResult> {
+        private final WorkerLoaderDelegate<TrackedResult, SimWorkerLoader> delegate =
+                new WorkerLoaderDelegate<TrackedResult, SimWorkerLoader>(this, new SimWorker(), dispatcher);
+
+        SimWorkerLoader() {
+            final WorkerLoaderDelegate.RestartPolicy[] policies = WorkerLoaderDelegate.RestartPolicy.values();
+            delegate.setRestartPolicy(policies[random.nextInt(policies.length)]);
+            delegate.setDeadline(MAX_LOAD_MILLIS * 3 / 4, new WorkerLoaderDelegate.TimeoutHandler<TrackedResult>() {
+                @Override
+                public TrackedResult createTimeoutResult(long deadlineMillis) {
+                    return newResult();
+                }
+            });
+            delegate.setHedging(90, new WorkerLoaderDelegate.WorkerFactory<TrackedResult>() {
+                @Override
+                public WorkerLoaderDelegate.Worker<TrackedResult> createWorker() {
+                    return new SimWorker();
+                }
+            });
+        }
+
+        @Override
+        TaskLoaderDelegate<TrackedResult, ?> delegate() {
+            return delegate;
+        }
+
+        @Override
+        public void forceLoad() {
+            delegate.onForceLoad();
+        }
+
+        @Override
+        public boolean cancelLoadCompat() {
+            return delegate.onCancelLoad();
+        }
+
+        @Override
+        public void onCanceled(TrackedResult data) {
+            loadsWasted++;
+            delegate.onCanceled(data);
+        }
+    }
+
+    /**
+     * Loads after a random virtual delay.  A canceled run either drops its result
+     * or delivers it late, as {@link WorkerLoaderDelegate.Worker#cancel()} allows.
+     */
+    private class SimWorker implements WorkerLoaderDelegate.Worker<TrackedResult> {
+        private Run run;
+
+        @Override
+        public void start(WorkerLoaderDelegate.ResultListener<TrackedResult> listener) {
+            run = new Run(listener);
+            loadsStarted++;
+            dispatcher.postDelayed(run, randomDelay());
+        }
+
+        @Override
+        public void cancel() {
+            if (run != null && random.nextBoolean()) {
+                run.dropped = true;
+                loadsWasted++;
+            }
+            run = null;
+        }
+
+        private class Run implements Runnable {
+            private final WorkerLoaderDelegate.ResultListener<TrackedResult> listener;
+            private boolean dropped;
+
+            Run(WorkerLoaderDelegate.ResultListener<TrackedResult> listener) {
+                this.listener = listener;
+            }
+
+            @Override
+            public void run() {
+                if (run == this) {
+                    run = null;
+                }
+                if (!dropped) {
+                    listener.onResult(newResult());
+                }
+            }
+        }
+    }
+
+    /**
+     * Plays the part of a {@link mobi.tjorn.content.loaders.WorkerLoader} for
+     * {@link #runBatcher(long)}: a data item delivered after the request was canceled
+     * is released right away.
+     */
+    private static class BatchRequest implements WorkerLoaderDelegate.ResultListener<TrackedResult> {
+        private final BatchingWorker<Integer, TrackedResult> worker;
+        private final List<TrackedResult> delivered = new ArrayList<TrackedResult>();
+        private boolean canceled;
+
+        BatchRequest(BatchingWorker<Integer, TrackedResult> worker) {
+            this.worker = worker;
+        }
+
+        synchronized void cancel() {
+            canceled = true;
+            worker.cancel();
+        }
+
+        synchronized boolean isCanceled() {
+            return canceled;
+        }
+
+        synchronized int getResultCount() {
+            return delivered.size();
+        }
+
+        synchronized void releaseDelivered() {
+            for (TrackedResult result : delivered) {
+                if (!result.isReleased()) {
+                    result.release();
+                }
+            }
+        }
+
+        @Override
+        public synchronized void onResult(TrackedResult result) {
+            delivered.add(result);
+            if (canceled) {
+                result.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016 TJORN LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobi.tjorn.content.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Soaks the loader delegates with randomized lifecycle churn.  The number of transitions
+ * per run can be changed with the {@code soak.transitions} system property.
+ */
+public class LifecycleSoakTest {
+    private static final long TRANSITIONS = Long.getLong("soak.transitions", 1000000);
+    private static final long SEED = Long.getLong("soak.seed", 42);
+
+    @Test
+    public void taskLoaderSurvivesLifecycleChurn() {
+        assertClean(new LifecycleSoakHarness(SEED).runTaskLoader(TRANSITIONS));
+    }
+
+    @Test
+    public void workerLoaderSurvivesLifecycleChurn() {
+        assertClean(new LifecycleSoakHarness(SEED).runWorkerLoader(TRANSITIONS));
+    }
+
+    @Test
+    public void dependentTaskLoadersSurviveLifecycleChurn() {
+        assertClean(new LifecycleSoakHarness(SEED).runDependentTaskLoaders(TRANSITIONS));
+    }
+
+    @Test
+    public void batcherCompletesEveryRequest() throws InterruptedException {
+        assertClean(new LifecycleSoakHarness(SEED).runBatcher(TRANSITIONS / 10));
+    }
+
+    private static void assertClean(LifecycleSoakHarness.Report report) {
+        assertTrue(report.toString(), report.isClean());
+        assertTrue(report.toString(), report.loadsDelivered > 0);
+    }
+}
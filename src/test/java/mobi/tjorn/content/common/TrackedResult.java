@@ -0,0 +1,48 @@
+/*
+ * Copyright 2016 TJORN LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobi.tjorn.content.common;
+
+/**
+ * A {@link Result} that counts how many times it was released.
+ */
+class TrackedResult implements Result {
+    private final long id;
+    private int releaseCount;
+
+    TrackedResult(long id) {
+        this.id = id;
+    }
+
+    int getReleaseCount() {
+        return releaseCount;
+    }
+
+    @Override
+    public boolean isReleased() {
+        return releaseCount > 0;
+    }
+
+    @Override
+    public void release() {
+        releaseCount++;
+    }
+
+    @Override
+    public String toString() {
+        return "TrackedResult#" + id;
+    }
+}
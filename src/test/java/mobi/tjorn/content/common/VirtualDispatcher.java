@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 TJORN LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobi.tjorn.content.common;
+
+import java.util.PriorityQueue;
+
+/**
+ * A deterministic {@link WorkerLoaderDelegate.Dispatcher} driven by a virtual clock.
+ * Nothing runs until {@link #runNext()} or {@link #drain()} is called; callbacks due
+ * at the same virtual time run in the order they were posted.
+ */
+class VirtualDispatcher implements WorkerLoaderDelegate.Dispatcher {
+    private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+    private long now;
+    private long sequence;
+
+    long now() {
+        return now;
+    }
+
+    boolean isIdle() {
+        return events.isEmpty();
+    }
+
+    @Override
+    public void post(Runnable runnable) {
+        postDelayed(runnable, 0);
+    }
+
+    @Override
+    public void postDelayed(Runnable runnable, long delayMillis) {
+        events.add(new Event(now + Math.max(0, delayMillis), sequence++, runnable));
+    }
+
+    @Override
+    public void removeCallbacks(Runnable runnable) {
+        while (events.remove(new Event(0, 0, runnable))) {
+            // Remove every pending post of the runnable
+        }
+    }
+
+    boolean runNext() {
+        final Event event = events.poll();
+        if (event == null) {
+            return false;
+        }
+        now = Math.max(now, event.time);
+        event.runnable.run();
+        return true;
+    }
+
+    void drain() {
+        while (runNext()) {
+            // Keep running
+        }
+    }
+
+    private static class Event implements Comparable<Event> {
+        private final long time;
+        private final long sequence;
+        private final Runnable runnable;
+
+        Event(long time, long sequence, Runnable runnable) {
+            this.time = time;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Event && ((Event) other).runnable == runnable;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(runnable);
+        }
+    }
+}